@@ -26,6 +26,8 @@ import java.awt.Color;
  * Represents one (straight) segment of a beam. A reflection is considered a new
  * Beam object, and is stored in the `child` field. The origin WorldObject of
  * the beam is storred, but not a significant field in the current implementation
+ * An object that emits more than one Beam at a time (e.g. a SubcircuitInstance
+ * with several outputs) chains the extra ones through `sibling`.
  *
  * @author benland100
  */
@@ -37,6 +39,7 @@ public class Beam {
     public double distance;
     public WorldObject origin = null;
     public Beam child = null;
+    public Beam sibling = null;
 
     public Beam(double angle, int org_x, int org_y, Color c) {
         this.angle = angle;
@@ -0,0 +1,579 @@
+/**
+ *  Copyright 2010 by Benjamin J. Land (a.k.a. BenLand100)
+ *
+ *  This file is part of the Laser Logic Simulator
+ *
+ *  Laser Logic Simulator is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Laser Logic Simulator is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Laser Logic Simulator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lasers;
+
+import java.awt.EventQueue;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Toolkit;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives the time dependent parts of a single World. Each World owns one
+ * Engine, which owns the TimingWheel its Clocks are scheduled on and the
+ * RenderScheduler that paces its repaints. The Engine thread is a daemon that
+ * is only started once there is something to do, and it exits on its own
+ * after a short while without work, so an idle or disposed World is not
+ * referenced by any thread and can be collected.
+ *
+ * The Engine thread is the only writer of its World. Edits from the GUI (or
+ * anywhere else) are queued with `post` and run in order on the Engine thread;
+ * every command queued before the thread gets to them is drained in one pass
+ * and followed by a single settle, so a burst of edits costs one settle, not
+ * one each. `requestSettle` works the same way without an edit. When a settle
+ * completes the World publishes a new Snapshot and a repaint is requested,
+ * so painting always shows the latest completed state without waiting on it.
+ *
+ * Ticks only cost what they can change. Objects report what a tick did to
+ * them through `changed`; the World is only re-settled if one of those
+ * changes can affect a beam, and otherwise just the changed objects are
+ * repainted, all in one coalesced repaint per tick.
+ *
+ * An Engine can instead be attached to a WorldHost, which runs it on a shared
+ * pool of worker threads alongside many other Worlds. The Engine then has no
+ * thread of its own; each time it has work the host runs one `pass` of it on
+ * some worker, and the same single writer rule holds because the host never
+ * runs two passes of one Engine at once.
+ *
+ * @author benland100
+ */
+public class Engine {
+
+    //Length of one wheel tick in milliseconds
+    public static final long TICK = 250;
+    //How long the Engine thread waits for new work before exiting
+    public static final long LINGER = 2000;
+
+    private final World world;
+    private final TimingWheel wheel = new TimingWheel(8);
+    private final RenderScheduler render;
+    private final ConcurrentLinkedQueue<Runnable> commands = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger pending = new AtomicInteger();
+    //Commands held back by an open batch on the posting thread
+    private final ThreadLocal<ArrayList<Runnable>> batch = new ThreadLocal<ArrayList<Runnable>>();
+    private final ThreadLocal<int[]> depth = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+    //Guarded by `this`
+    private Thread thread = null;
+    private boolean disposed = false;
+    private boolean settleRequested = false;
+    //Number of completed passes of the Engine loop
+    private long passes = 0;
+    //Maximum number of commands queued before `post` drops edits
+    private int capacity = Integer.MAX_VALUE;
+    //Maximum number of commands run per pass, so a busy World yields
+    private int quantum = Integer.MAX_VALUE;
+
+    //Host state, guarded by `this`. `queued` is true while the Engine waits in
+    //the host's run queue or a pass is running, so it is never queued twice
+    private WorldHost host = null;
+    private boolean queued = false, running = false, tickDue = false;
+
+    //CPU time spent in passes, in nanoseconds
+    private volatile long cpu = 0;
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    //What the current tick changed, only touched by the Engine thread
+    private boolean settle = false;
+    private Rectangle dirty = null;
+    private final ArrayList<WorldObject> touched = new ArrayList<WorldObject>();
+
+    public Engine(World world) {
+        this.world = world;
+        render = new RenderScheduler(world);
+    }
+
+    /**
+     * @return The last tick processed by this Engine's wheel
+     */
+    public long now() {
+        return wheel.now();
+    }
+
+    /**
+     * @return The RenderScheduler pacing this World's repaints
+     */
+    public RenderScheduler getRenderScheduler() {
+        return render;
+    }
+
+    /**
+     * Schedules a periodic Entry, starting the Engine thread if needed. The
+     * thread is started even for a period of 0 so the request is applied.
+     * @see TimingWheel#schedule
+     */
+    public void schedule(TimingWheel.Entry entry, int period, int phase) {
+        wheel.schedule(entry, period, phase);
+        start();
+    }
+
+    /**
+     * Stops a periodic Entry. The Engine thread is started to apply the
+     * request, and exits once nothing is left.
+     * @see TimingWheel#cancel
+     */
+    public void cancel(TimingWheel.Entry entry) {
+        wheel.cancel(entry);
+        start();
+    }
+
+    /**
+     * Asks for the World to be settled on the Engine thread. Returns at once,
+     * and requests made while one is pending are merged into it.
+     */
+    public synchronized void requestSettle() {
+        if (disposed) return;
+        settleRequested = true;
+        notifyAll();
+        start();
+    }
+
+    /**
+     * Queues an edit to run on the Engine thread. Never blocks: once
+     * `capacity` commands are waiting the edit is dropped, with a beep if
+     * posted from the EDT, so the caller can back off. The World is settled
+     * after the batch of commands the edit ends up in.
+     * @param command The edit
+     * @return False if the edit was dropped
+     */
+    public boolean post(Runnable command) {
+        ArrayList<Runnable> open = batch.get();
+        if (open != null) {
+            open.add(command);
+            return true;
+        }
+        return submit(command);
+    }
+
+    /**
+     * Offers a command, telling the user if the EDT was turned away
+     */
+    private boolean submit(Runnable command) {
+        if (offer(command)) return true;
+        if (EventQueue.isDispatchThread()) Toolkit.getDefaultToolkit().beep();
+        return false;
+    }
+
+    /**
+     * Queues a command right away, even inside a batch and past `capacity`.
+     * Only for commands the Engine itself needs run, such as `flush`.
+     */
+    synchronized void enqueue(Runnable command) {
+        if (disposed) return;
+        pending.incrementAndGet();
+        commands.add(command);
+        notifyAll();
+        start();
+    }
+
+    /**
+     * Starts a batch on the calling thread: everything it posts until the
+     * matching `commit` is held back and then queued as a single command, so
+     * the whole batch is applied in one pass, with one rebuild of each
+     * touched tile and one settle, and nothing else can run in the middle of
+     * it. Batches nest; only the outermost `commit` queues anything.
+     */
+    public void begin() {
+        if (depth.get()[0]++ == 0) {
+            batch.set(new ArrayList<Runnable>());
+        }
+    }
+
+    /**
+     * Ends the batch started by the last `begin` on the calling thread
+     * @return False if the batch was dropped, like an edit given to `post`
+     * @throws IllegalStateException if no batch is open
+     */
+    public boolean commit() {
+        int[] d = depth.get();
+        if (d[0] == 0) throw new IllegalStateException("No batch to commit");
+        if (--d[0] > 0) return true;
+        final ArrayList<Runnable> list = batch.get();
+        batch.remove();
+        if (list.isEmpty()) return true;
+        return submit(new Runnable() {
+            public void run() {
+                for (Runnable command : list) {
+                    try {
+                        command.run();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues an edit like `post`, unless `capacity` commands are already
+     * waiting, in which case nothing is queued. The Engine thread is never
+     * turned away, since the commands it queues are follow ups of its own.
+     * @param command The edit
+     * @return True if the command was queued
+     */
+    public synchronized boolean offer(Runnable command) {
+        if (disposed || (pending.get() >= capacity && thread != Thread.currentThread())) return false;
+        enqueue(command);
+        return true;
+    }
+
+    /**
+     * Bounds the command queue, so that `post` and `offer` drop edits once
+     * this many commands are waiting
+     * @param capacity Maximum number of queued commands
+     */
+    public synchronized void setCapacity(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+        notifyAll();
+    }
+
+    /**
+     * Limits how many commands a single pass runs before settling and
+     * letting other Worlds on the same host have a turn
+     * @param quantum Maximum number of commands per pass
+     */
+    public synchronized void setQuantum(int quantum) {
+        this.quantum = Math.max(quantum, 1);
+    }
+
+    /**
+     * @return The number of commands waiting to run
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * @return CPU time (wall time where unsupported) spent running this
+     *         Engine's passes, in nanoseconds
+     */
+    public long getCpuTime() {
+        return cpu;
+    }
+
+    /**
+     * @return The number of passes this Engine has completed
+     */
+    public synchronized long getPasses() {
+        return passes;
+    }
+
+    /**
+     * Blocks until every command posted before this call has run and the
+     * World has been settled and published after them.
+     * @throws InterruptedException
+     * @throws IllegalStateException if called from the Engine thread
+     */
+    public void flush() throws InterruptedException {
+        if (isEngineThread()) throw new IllegalStateException("Engine thread cannot wait on itself");
+        final long[] ran = {-1};
+        //bypasses any open batch, which would never reach the queue
+        enqueue(new Runnable() {
+            public void run() {
+                synchronized (Engine.this) {
+                    ran[0] = passes;
+                }
+            }
+        });
+        synchronized (this) {
+            while (!disposed && (ran[0] < 0 || passes <= ran[0])) {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * @return True if the calling thread is this Engine's thread
+     */
+    public synchronized boolean isEngineThread() {
+        return thread == Thread.currentThread();
+    }
+
+    /**
+     * Asks for the whole World to be repainted in the next frame
+     */
+    public void requestRepaint() {
+        render.request();
+    }
+
+    /**
+     * Asks for a region (in world coordinates) to be repainted in the next
+     * frame
+     * @param r The region
+     */
+    public void requestRepaint(Rectangle r) {
+        render.request(r);
+    }
+
+    /**
+     * Records that a tick changed an object. Must only be called from within
+     * a TimingWheel.Listener, i.e. on the Engine thread.
+     * @param obj The object whose state changed
+     * @param settle True if the change can affect beams
+     */
+    public void changed(WorldObject obj, boolean settle) {
+        this.settle |= settle;
+        touched.add(obj);
+        Point p = obj.getPos();
+        int e = obj.getExtent();
+        Rectangle r = new Rectangle(p.x - e, p.y - e, 2 * e, 2 * e);
+        if (dirty == null) {
+            dirty = r;
+        } else {
+            dirty.add(r);
+        }
+    }
+
+    /**
+     * @return True if the Engine thread is currently alive
+     */
+    public synchronized boolean isRunning() {
+        return thread != null;
+    }
+
+    private synchronized void start() {
+        if (disposed) return;
+        if (host != null) {
+            if (!queued) {
+                queued = true;
+                host.ready(this);
+            }
+            return;
+        }
+        if (thread != null) return;
+        thread = new Thread("laser-engine") {
+            @Override
+            public void run() {
+                Engine.this.run();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        long next = System.currentTimeMillis() + TICK;
+        long idleSince = System.currentTimeMillis();
+        while (true) {
+            boolean tickNow;
+            synchronized (this) {
+                while (true) {
+                    long time = System.currentTimeMillis();
+                    boolean ticking = !wheel.isIdle();
+                    boolean pending = settleRequested || !commands.isEmpty();
+                    if (!ticking) next = time + TICK;
+                    if (disposed || host != null || (!ticking && !pending && time - idleSince >= LINGER)) {
+                        //cleared under the lock so that `start` can never miss an exit
+                        thread = null;
+                        return;
+                    }
+                    if (pending || (ticking && time >= next)) break;
+                    try {
+                        wait(ticking ? next - time : LINGER - (time - idleSince));
+                    } catch (InterruptedException e) {
+                        //disposed, checked above
+                    }
+                }
+                tickNow = !wheel.isIdle() && System.currentTimeMillis() >= next;
+            }
+            if (tickNow) {
+                //don't try to catch up on ticks missed while busy
+                next = Math.max(next + TICK, System.currentTimeMillis());
+            }
+            pass(tickNow);
+            idleSince = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Runs up to `quantum` queued commands, advances the wheel if asked to
+     * and settles or republishes whatever changed. Only ever runs on one
+     * thread at a time.
+     * @param tickNow True to advance the wheel by one tick
+     */
+    private void pass(boolean tickNow) {
+        long start = cpuTime();
+        boolean settleNow = drain();
+        synchronized (this) {
+            //taken after the drain so requests made by commands are served too
+            settleNow |= settleRequested;
+            settleRequested = false;
+        }
+        try {
+            if (tickNow) {
+                wheel.advance();
+            }
+            if (settleNow || settle) {
+                world.settle();
+                render.request();
+            } else if (dirty != null) {
+                world.publish(touched);
+                render.request(dirty);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        settle = false;
+        dirty = null;
+        touched.clear();
+        cpu += cpuTime() - start;
+        synchronized (this) {
+            passes++;
+            notifyAll();
+        }
+    }
+
+    private static long cpuTime() {
+        if (threads.isCurrentThreadCpuTimeSupported()) {
+            return threads.getCurrentThreadCpuTime();
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Moves this Engine onto a host, or back onto its own thread if `host` is
+     * null. Waits for the current thread or hosted pass to finish first.
+     */
+    void attach(WorldHost host) throws InterruptedException {
+        Thread t;
+        synchronized (this) {
+            if (isEngineThread()) throw new IllegalStateException("Engine cannot move itself");
+            while (running) {
+                wait();
+            }
+            t = this.host == null ? thread : null;
+            this.host = host;
+            //holds off hosted passes until the old thread has exited
+            queued = true;
+            tickDue = false;
+            notifyAll();
+        }
+        if (t != null) t.join();
+        synchronized (this) {
+            queued = false;
+            if (hasWork()) start();
+        }
+    }
+
+    /**
+     * Called by the host's ticker. Marks the next tick due if anything is
+     * scheduled on the wheel.
+     */
+    synchronized void tick() {
+        if (host == null || wheel.isIdle()) return;
+        tickDue = true;
+        start();
+    }
+
+    private synchronized boolean hasWork() {
+        return !disposed && (settleRequested || !commands.isEmpty() || (tickDue && !wheel.isIdle()));
+    }
+
+    /**
+     * Runs one pass for the host.
+     * @param from The host running the pass
+     * @return True if the Engine has more work and should be queued again
+     */
+    boolean runHosted(WorldHost from) {
+        boolean tickNow;
+        synchronized (this) {
+            //stale entries from a previous host, or a second entry, are dropped
+            if (from != host || running || disposed) return false;
+            running = true;
+            thread = Thread.currentThread();
+            tickNow = tickDue;
+            tickDue = false;
+        }
+        try {
+            pass(tickNow);
+        } finally {
+            synchronized (this) {
+                running = false;
+                thread = null;
+                queued = hasWork();
+                notifyAll();
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Runs every queued command
+     * @return True if there were any
+     */
+    private boolean drain() {
+        boolean any = false;
+        Runnable command;
+        for (int i = 0; i < quantum && (command = commands.poll()) != null; i++) {
+            pending.decrementAndGet();
+            any = true;
+            try {
+                command.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return any;
+    }
+
+    /**
+     * Stops the Engine thread and rendering for good, waiting for a settle in
+     * progress to finish so the caller can take over the World. Anything
+     * requested afterwards is ignored.
+     */
+    public void dispose() {
+        Thread t;
+        synchronized (this) {
+            disposed = true;
+            notifyAll();
+            t = host == null ? thread : null;
+            if (host != null) {
+                host.forget(this);
+                while (running && thread != Thread.currentThread()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+        render.dispose();
+        commands.clear();
+        pending.set(0);
+        if (t != null && t != Thread.currentThread()) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
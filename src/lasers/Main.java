@@ -19,6 +19,9 @@
 
 package lasers;
 
+import java.awt.Component;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import javax.swing.JApplet;
 import javax.swing.JFrame;
 
@@ -36,13 +39,26 @@ public class Main extends JApplet {
         add(new World());
     }
 
+    @Override
+    public void destroy() {
+        for (Component c : getContentPane().getComponents()) {
+            if (c instanceof World) ((World)c).dispose();
+        }
+    }
+
     /**
      * @param args the command line arguments
      */
     public static void main(String[] args) {
-        World w = new World();
+        final World w = new World();
         JFrame frame = new JFrame("Laser Logic Simulator v2 by Benland100");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                w.dispose();
+            }
+        });
         frame.add(w);
         frame.setSize(500,500);
         frame.setVisible(true);
@@ -0,0 +1,395 @@
+/**
+ *  Copyright 2010 by Benjamin J. Land (a.k.a. BenLand100)
+ *
+ *  This file is part of the Laser Logic Simulator
+ *
+ *  Laser Logic Simulator is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Laser Logic Simulator is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Laser Logic Simulator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lasers;
+
+import java.awt.Rectangle;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import lasers.objects.SubcircuitInstance;
+
+/**
+ * A board saved as a memory mapped file. Every object has a fixed size record
+ * with its geometry and type, so those can be read straight from the mapped
+ * pages, and its state is kept apart in the LASERSv3 encoding, which is only
+ * decoded when the object is asked for. Subcircuit definitions are stored
+ * once in their own section and states refer to them by index.
+ *
+ * Opening a board only maps the file, pages are read as they are touched and
+ * belong to the OS rather than the heap. A board is read only, and opening the
+ * same unchanged file again returns the same MappedBoard. Worlds that only
+ * simulate the board should use `fork`, which decodes it once and shares every
+ * shareable object and the tiles between all of them, rather than `load`,
+ * which decodes a full copy for a World to edit.
+ *
+ * Layout (big endian):
+ *      header:  "LASERSm2", count, 0, then the offsets of the records, the
+ *               states, the links and the definitions as longs
+ *      records: x, y, angle (double), extent, type tag, state offset (long),
+ *               state length, 0 - `RECORD` bytes each
+ *      states:  each object as written by `World.writeState`
+ *      links:   as in `World.write`, by record index
+ *      defs:    count, then each definition as written by `Subcircuit.write`
+ *
+ * @author benland100
+ */
+public final class MappedBoard {
+
+    private static final byte[] MAGIC = "LASERSm2".getBytes();
+    private static final int HEADER = 48;
+    private static final int RECORD = 40;
+
+    //Boards opened so far by canonical file, so Worlds share their pages
+    private static final HashMap<File, WeakReference<MappedBoard>> opened = new HashMap<File, WeakReference<MappedBoard>>();
+
+    private final File file;
+    private final long modified, length;
+    private final MappedByteBuffer buf;
+    private final int count;
+    private final int records, links, defs;
+    //World decoded by `fork`, which every fork shares its objects with
+    private World base;
+
+    private MappedBoard(File file) throws IOException {
+        this.file = file;
+        modified = file.lastModified();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            length = raf.length();
+            if (length > Integer.MAX_VALUE) throw new IOException("Board file too large to map");
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            raf.close();
+        }
+        if (!isMapped(buf)) throw new IOException("Not a mapped board");
+        count = buf.getInt(8);
+        records = (int) buf.getLong(16);
+        links = (int) buf.getLong(32);
+        defs = (int) buf.getLong(40);
+    }
+
+    private static boolean isMapped(ByteBuffer buf) {
+        if (buf.limit() < HEADER) return false;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buf.get(i) != MAGIC[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param file A file
+     * @return True if the file holds a mapped board
+     */
+    public static boolean isMapped(File file) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                byte[] head = new byte[MAGIC.length];
+                return raf.length() >= HEADER && raf.read(head) == head.length && ByteBuffer.wrap(head).equals(ByteBuffer.wrap(MAGIC));
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Maps a board file, or returns the board already mapped from it if the
+     * file has not changed since
+     * @param file File written by `write`
+     * @return The board
+     * @throws IOException
+     */
+    public static MappedBoard open(File file) throws IOException {
+        File key = file.getCanonicalFile();
+        synchronized (opened) {
+            Iterator<WeakReference<MappedBoard>> it = opened.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().get() == null) it.remove();
+            }
+            WeakReference<MappedBoard> ref = opened.get(key);
+            MappedBoard board = ref == null ? null : ref.get();
+            if (board == null || board.modified != key.lastModified() || board.length != key.length()) {
+                board = new MappedBoard(key);
+                opened.put(key, new WeakReference<MappedBoard>(board));
+            }
+            return board;
+        }
+    }
+
+    /**
+     * Writes objects as a mapped board. The states are streamed to the file
+     * as they are written, only the records are kept until the end.
+     * @param file File to write
+     * @param array Objects to write
+     * @throws IOException
+     */
+    public static void write(File file, WorldObject[] array) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel ch = raf.getChannel();
+            long states = HEADER + (long) array.length * RECORD;
+            ByteBuffer recs = ByteBuffer.allocate(array.length * RECORD);
+            IdentityHashMap<Subcircuit, Integer> defs = new IdentityHashMap<Subcircuit, Integer>();
+            ArrayList<Subcircuit> order = new ArrayList<Subcircuit>();
+            for (WorldObject obj : array) {
+                if (!(obj instanceof SubcircuitInstance)) continue;
+                Subcircuit def = ((SubcircuitInstance) obj).getDefinition();
+                if (!defs.containsKey(def)) {
+                    defs.put(def, order.size());
+                    order.add(def);
+                }
+            }
+            IdentityHashMap<WorldObject, Integer> index = new IdentityHashMap<WorldObject, Integer>(array.length * 2);
+            ch.position(states);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)));
+            long at = states;
+            for (int i = 0; i < array.length; i++) {
+                WorldObject obj = array[i];
+                index.put(obj, i);
+                int before = out.size();
+                World.writeState(out, obj, defs);
+                int len = out.size() - before;
+                recs.putInt(obj.getX());
+                recs.putInt(obj.getY());
+                recs.putDouble(obj.getAngle());
+                recs.putInt(obj.getExtent());
+                recs.putInt(World.tagOf(obj));
+                recs.putLong(at);
+                recs.putInt(len);
+                recs.putInt(0);
+                at += len;
+            }
+            long linksAt = at;
+            int controls = 0;
+            for (WorldObject obj : array) {
+                if (obj instanceof ControlObject) controls++;
+            }
+            out.writeInt(controls);
+            for (int i = 0; i < array.length; i++) {
+                if (!(array[i] instanceof ControlObject)) continue;
+                ArrayList<Integer> toggles = new ArrayList<Integer>();
+                for (ToggleObject obj : ((ControlObject) array[i]).controlled()) {
+                    Integer c = index.get((WorldObject) obj);
+                    if (c != null) toggles.add(c);
+                }
+                out.writeInt(i);
+                out.writeInt(toggles.size());
+                for (Integer c : toggles) {
+                    out.writeInt(c);
+                }
+            }
+            long defsAt = states + out.size();
+            out.writeInt(order.size());
+            for (Subcircuit def : order) {
+                Subcircuit.write(out, def);
+            }
+            out.flush();
+            recs.flip();
+            ch.write(recs, HEADER);
+            ByteBuffer head = ByteBuffer.allocate(HEADER);
+            head.put(MAGIC);
+            head.putInt(array.length);
+            head.putInt(0);
+            head.putLong(HEADER);
+            head.putLong(states);
+            head.putLong(linksAt);
+            head.putLong(defsAt);
+            head.flip();
+            ch.write(head, 0);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * A stream over part of the mapped file. Reads use absolute positions of
+     * a duplicate buffer, so any number of threads may read at once.
+     */
+    private InputStream stream(final int from, final int to) {
+        final ByteBuffer b = buf.duplicate();
+        b.limit(to);
+        b.position(from);
+        return new InputStream() {
+            public int read() {
+                return b.hasRemaining() ? b.get() & 0xFF : -1;
+            }
+
+            public int read(byte[] dst, int off, int len) {
+                if (!b.hasRemaining()) return -1;
+                len = Math.min(len, b.remaining());
+                b.get(dst, off, len);
+                return len;
+            }
+        };
+    }
+
+    /**
+     * @return The file the board was mapped from
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The number of objects
+     */
+    public int size() {
+        return count;
+    }
+
+    public int getX(int i) {
+        return buf.getInt(records + i * RECORD);
+    }
+
+    public int getY(int i) {
+        return buf.getInt(records + i * RECORD + 4);
+    }
+
+    public double getAngle(int i) {
+        return buf.getDouble(records + i * RECORD + 8);
+    }
+
+    public int getExtent(int i) {
+        return buf.getInt(records + i * RECORD + 16);
+    }
+
+    /**
+     * @param i Index of the object
+     * @return Its LASERSv3 type tag
+     */
+    public int getTag(int i) {
+        return buf.getInt(records + i * RECORD + 20);
+    }
+
+    /**
+     * @return The bounds of every object position, read from the records
+     *         alone
+     */
+    public Rectangle getBounds() {
+        if (count == 0) return new Rectangle();
+        Rectangle r = new Rectangle(getX(0), getY(0), 0, 0);
+        for (int i = 1; i < count; i++) {
+            r.add(getX(i), getY(i));
+        }
+        return r;
+    }
+
+    /**
+     * Decodes the subcircuit definitions, reusing any the World already has
+     * @param w World the definitions are for
+     * @return The definitions, by index
+     * @throws IOException
+     */
+    public List<Subcircuit> definitions(World w) throws IOException {
+        DataInputStream in = new DataInputStream(stream(defs, (int) length));
+        int num = in.readInt();
+        ArrayList<Subcircuit> res = new ArrayList<Subcircuit>(num);
+        for (int i = 0; i < num; i++) {
+            res.add(Subcircuit.read(in, w));
+        }
+        return res;
+    }
+
+    /**
+     * Decodes a single object, without any links
+     * @param i Index of the object
+     * @param w World the object is for
+     * @return The object
+     * @throws IOException
+     */
+    public WorldObject get(int i, World w) throws IOException {
+        return get(i, w, getTag(i) == World.TAG_SUBCIRCUIT ? definitions(w) : new ArrayList<Subcircuit>());
+    }
+
+    private WorldObject get(int i, World w, List<Subcircuit> defs) throws IOException {
+        int at = (int) buf.getLong(records + i * RECORD + 24);
+        int len = buf.getInt(records + i * RECORD + 32);
+        WorldObject obj = w.readState(getTag(i), new DataInputStream(stream(at, at + len)), defs);
+        obj.x = getX(i);
+        obj.y = getY(i);
+        obj.extent = getExtent(i);
+        obj.angle = getAngle(i);
+        return obj;
+    }
+
+    /**
+     * Decodes every object and links them, ready for `World.setObjects`
+     * @param w World the objects are for
+     * @return The objects
+     * @throws IOException
+     */
+    public WorldObject[] load(World w) throws IOException {
+        WorldObject[] array = new WorldObject[count];
+        List<Subcircuit> defs = definitions(w);
+        for (int i = 0; i < count; i++) {
+            array[i] = get(i, w, defs);
+        }
+        DataInputStream in = new DataInputStream(stream(links, (int) length));
+        int controls = in.readInt();
+        for (int i = 0; i < controls; i++) {
+            ControlObject obj = (ControlObject) array[in.readInt()];
+            int toggles = in.readInt();
+            for (int c = 0; c < toggles; c++) {
+                obj.control((ToggleObject) array[in.readInt()]);
+            }
+        }
+        return array;
+    }
+
+    /**
+     * Creates a World simulating the board. The board is decoded once into a
+     * headless World kept with it, and every call forks that World, so forks
+     * share the shareable objects, the definitions and the tiles, see
+     * `World.fork`. Can be called from any thread.
+     * @return A new headless World, already settled
+     * @throws IOException
+     */
+    public synchronized World fork() throws IOException {
+        if (base == null) {
+            World w = new World();
+            w.setObjects(load(w));
+            try {
+                w.getEngine().flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            base = w;
+        }
+        return base.fork();
+    }
+
+}
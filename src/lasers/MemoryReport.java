@@ -0,0 +1,154 @@
+/**
+ *  Copyright 2010 by Benjamin J. Land (a.k.a. BenLand100)
+ *
+ *  This file is part of the Laser Logic Simulator
+ *
+ *  Laser Logic Simulator is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Laser Logic Simulator is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Laser Logic Simulator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lasers;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Where the memory of a World goes, as returned by `World.memoryReport`. Each
+ * part of the World is listed with an estimate of the bytes it uses and a
+ * short note, e.g. how many objects make it up.
+ *
+ * The estimates assume a 64 bit JVM with compressed references: 12 byte
+ * object headers, 4 byte references, and every object padded to 8 bytes.
+ * Only memory the part owns is counted, e.g. not the Colors of beams, which
+ * are shared.
+ *
+ * @author benland100
+ */
+public final class MemoryReport {
+
+    //Shallow size of the instances of each class, see `shallow`
+    private static final HashMap<Class<?>, Integer> sizes = new HashMap<Class<?>, Integer>();
+
+    //Bytes and note of each part, in the order they were added
+    private final LinkedHashMap<String, Long> bytes = new LinkedHashMap<String, Long>();
+    private final HashMap<String, String> notes = new HashMap<String, String>();
+
+    MemoryReport() {
+    }
+
+    /**
+     * Adds to the bytes of a part, and replaces its note
+     */
+    void add(String part, long size, String note) {
+        Long old = bytes.get(part);
+        bytes.put(part, old == null ? size : old + size);
+        notes.put(part, note);
+    }
+
+    /**
+     * @return The estimated size of an instance of a class, without anything
+     *         it refers to
+     */
+    static int shallow(Class<?> c) {
+        synchronized (sizes) {
+            Integer size = sizes.get(c);
+            if (size == null) {
+                int s = 12;
+                for (Class<?> k = c; k != null; k = k.getSuperclass()) {
+                    for (Field f : k.getDeclaredFields()) {
+                        if (Modifier.isStatic(f.getModifiers())) continue;
+                        Class<?> t = f.getType();
+                        if (t == long.class || t == double.class) {
+                            s += 8;
+                        } else if (t == short.class || t == char.class) {
+                            s += 2;
+                        } else if (t == byte.class || t == boolean.class) {
+                            s += 1;
+                        } else {
+                            s += 4;
+                        }
+                    }
+                }
+                size = align(s);
+                sizes.put(c, size);
+            }
+            return size;
+        }
+    }
+
+    /**
+     * @return The estimated size of an array
+     * @param length Number of elements
+     * @param element Bytes per element
+     */
+    static long array(long length, int element) {
+        return align(16 + length * element);
+    }
+
+    /**
+     * @return The estimated size of a String of some length, including its
+     *         (Latin-1) characters
+     */
+    static long string(int length) {
+        return 24 + array(length, 1);
+    }
+
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    /**
+     * @return The estimated bytes of each part, in report order
+     */
+    public Map<String, Long> getBytes() {
+        return Collections.unmodifiableMap(bytes);
+    }
+
+    /**
+     * @return The estimated bytes of every part together
+     */
+    public long getTotal() {
+        long total = 0;
+        for (long b : bytes.values()) {
+            total += b;
+        }
+        return total;
+    }
+
+    private static String format(long b) {
+        if (b < 1024) return b + " B";
+        if (b < 1024 * 1024) return String.format("%.1f KB", b / 1024.0);
+        return String.format("%.1f MB", b / (1024.0 * 1024.0));
+    }
+
+    /**
+     * @return One line per part, then the total
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> e : bytes.entrySet()) {
+            sb.append(String.format("%-24s %10s  %s%n", e.getKey(), format(e.getValue()), notes.get(e.getKey())));
+        }
+        sb.append(String.format("%-24s %10s%n", "Total", format(getTotal())));
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,123 @@
+/**
+ *  Copyright 2010 by Benjamin J. Land (a.k.a. BenLand100)
+ *
+ *  This file is part of the Laser Logic Simulator
+ *
+ *  Laser Logic Simulator is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Laser Logic Simulator is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Laser Logic Simulator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lasers;
+
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import javax.swing.Timer;
+
+/**
+ * Paces the repaints of a World. Any thread can request a repaint of the whole
+ * World or of a region of it; requests are merged until the next frame and at
+ * most `fps` frames are painted per second. The frame timer stops as soon as a
+ * frame passes with nothing to paint, so an idle World costs nothing.
+ *
+ * @author benland100
+ */
+public class RenderScheduler implements ActionListener {
+
+    public static final int DEFAULT_FPS = 60;
+
+    private final World world;
+    private final Timer timer;
+    //Pending requests, guarded by `this`
+    private boolean full = false;
+    private Rectangle region = null;
+
+    public RenderScheduler(World world) {
+        this.world = world;
+        timer = new Timer(1000 / DEFAULT_FPS, this);
+        timer.setInitialDelay(0);
+        timer.setCoalesce(true);
+    }
+
+    /**
+     * Sets the maximum number of frames painted per second
+     * @param fps Frames per second
+     */
+    public void setFrameRate(int fps) {
+        timer.setDelay(1000 / Math.max(fps, 1));
+    }
+
+    /**
+     * Requests that the whole World be repainted in the next frame
+     */
+    public void request() {
+        synchronized (this) {
+            full = true;
+            region = null;
+        }
+        timer.start();
+    }
+
+    /**
+     * Requests that a region (in world coordinates) be repainted in the next
+     * frame
+     * @param r The region
+     */
+    public void request(Rectangle r) {
+        synchronized (this) {
+            if (full) return;
+            if (region == null) {
+                region = new Rectangle(r);
+            } else {
+                region.add(r);
+            }
+        }
+        timer.start();
+    }
+
+    /**
+     * Paints one frame on the EDT, or stops the timer if there is nothing to
+     * paint.
+     */
+    public void actionPerformed(ActionEvent e) {
+        boolean all;
+        Rectangle r;
+        synchronized (this) {
+            all = full;
+            r = region;
+            full = false;
+            region = null;
+            if (!all && r == null) {
+                timer.stop();
+                return;
+            }
+        }
+        if (all) {
+            world.repaint();
+        } else {
+            world.repaintWorld(r);
+        }
+    }
+
+    /**
+     * Stops painting for good
+     */
+    public void dispose() {
+        timer.stop();
+        synchronized (this) {
+            full = false;
+            region = null;
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+/**
+ *  Copyright 2010 by Benjamin J. Land (a.k.a. BenLand100)
+ *
+ *  This file is part of the Laser Logic Simulator
+ *
+ *  Laser Logic Simulator is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Laser Logic Simulator is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Laser Logic Simulator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lasers;
+
+import java.util.IdentityHashMap;
+import lasers.kdimensional.kdFlatTree;
+
+/**
+ * The render state of a World at the end of a settle or tick. The Engine
+ * thread builds a new Snapshot and swaps it in whole, nothing in a published
+ * Snapshot is ever modified again, so any thread may read it without locking.
+ *
+ * @author benland100
+ */
+public final class Snapshot {
+
+    //The objects in the World, only for identifying them (e.g. selection)
+    final WorldObject[] live;
+    //Copies of `live` frozen at publish time, only for drawing
+    final WorldObject[] frozen;
+    //The tiles the objects are grouped by, as x1,y1,x2,y2,end quintuples of
+    //the area they draw in and the index after their last object
+    final int[] areas;
+    //Link lines from ControlObjects, as x1,y1,x2,y2 quadruples
+    final int[] links;
+    //Starting segments of the beams
+    final Beam[] beams;
+    //Positions of the frozen objects, whose payloads are their index
+    final kdFlatTree tree;
+    //Value of the World's layout counter the objects were placed by, so a
+    //later Snapshot can tell if `live`, `areas` and `tree` still hold
+    final int layout;
+    //Maps `live` objects to their index, built when first needed
+    private IdentityHashMap<WorldObject, Integer> index;
+
+    Snapshot() {
+        this(new WorldObject[0], new WorldObject[0], new int[0], new int[0], new Beam[0], -1);
+    }
+
+    /**
+     * Builds the tree of the objects, so must be made on the Engine thread
+     */
+    Snapshot(WorldObject[] live, WorldObject[] frozen, int[] areas, int[] links, Beam[] beams, int layout) {
+        this(live, frozen, areas, links, beams, tree(frozen), layout);
+    }
+
+    private Snapshot(WorldObject[] live, WorldObject[] frozen, int[] areas, int[] links, Beam[] beams, kdFlatTree tree, int layout) {
+        this.live = live;
+        this.frozen = frozen;
+        this.areas = areas;
+        this.links = links;
+        this.beams = beams;
+        this.tree = tree;
+        this.layout = layout;
+    }
+
+    /**
+     * Makes a Snapshot of the same objects in the same places, which shares
+     * everything that depends only on where they are
+     * @param frozen New copies of `live`, in the same order
+     */
+    Snapshot update(WorldObject[] frozen, int[] links, Beam[] beams) {
+        Snapshot res = new Snapshot(live, frozen, areas, links, beams, tree, layout);
+        res.index = index;
+        return res;
+    }
+
+    private static kdFlatTree tree(WorldObject[] frozen) {
+        double[] coords = new double[frozen.length * 2];
+        for (int i = 0; i < frozen.length; i++) {
+            coords[i * 2] = frozen[i].getX();
+            coords[i * 2 + 1] = frozen[i].getY();
+        }
+        return new kdFlatTree(coords, 2);
+    }
+
+    /**
+     * Only used by the Engine thread, when publishing the next Snapshot
+     */
+    IdentityHashMap<WorldObject, Integer> index() {
+        if (index == null) {
+            index = new IdentityHashMap<WorldObject, Integer>(live.length * 2);
+            for (int i = 0; i < live.length; i++) {
+                index.put(live[i], i);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return A kdFlatTree of the frozen object positions, whose payloads are
+     *         the index of the object
+     */
+    kdFlatTree tree() {
+        return tree;
+    }
+
+    /**
+     * @return The number of objects
+     */
+    public int size() {
+        return frozen.length;
+    }
+
+    /**
+     * @param i Index of the object
+     * @return The frozen copy of the object, which must not be modified
+     */
+    public WorldObject getObject(int i) {
+        return frozen[i];
+    }
+
+    /**
+     * @return The starting segments of the beams, which must not be modified
+     */
+    public Beam[] getBeams() {
+        return beams;
+    }
+
+}
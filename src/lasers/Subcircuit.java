@@ -0,0 +1,319 @@
+/**
+ *  Copyright 2010 by Benjamin J. Land (a.k.a. BenLand100)
+ *
+ *  This file is part of the Laser Logic Simulator
+ *
+ *  Laser Logic Simulator is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Laser Logic Simulator is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Laser Logic Simulator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lasers;
+
+import java.awt.Point;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import lasers.objects.Clock;
+import lasers.objects.Detector;
+import lasers.objects.Emitter;
+import lasers.objects.SubcircuitInstance;
+
+/**
+ * A reusable circuit template. The template objects live in a private World
+ * and are never placed on a board themselves; instead SubcircuitInstances
+ * refer to the definition and only keep their port and state bits.
+ *
+ * Input ports are Detectors in the template (a beam striking the port on an
+ * instance turns the input on) and output ports are Emitters (the instance
+ * emits a beam from the port while the Emitter is on). The state of a
+ * definition is the toggle state of every ToggleObject in the template plus
+ * the state of any nested instances, so latches and flip-flops work too.
+ *
+ * The template is only ever traced when a (inputs, state) pair is seen for the
+ * first time, after that the resulting outputs, next state and internal beams
+ * come from the truth table. Cost therefore scales with the number of distinct
+ * designs and states, not with the number of copies on the board.
+ *
+ * @author benland100
+ */
+public class Subcircuit {
+
+    public static final int MAX_PORTS = 16;
+    public static final int MAX_STATE_BITS = 48;
+
+    /**
+     * One row of the truth table: what the template settles to for a given
+     * set of inputs and starting state.
+     */
+    public static class Behaviour {
+        public final int outputs;
+        public final long state;
+        //The internal beams in template coordinates, only used for rendering
+        public final Beam[] beams;
+
+        private Behaviour(int outputs, long state, Beam[] beams) {
+            this.outputs = outputs;
+            this.state = state;
+            this.beams = beams;
+        }
+    }
+
+    private final String name;
+    private final World world;
+    private final WorldObject[] template;
+    private final Detector[] inputs;
+    private final Emitter[] outputs;
+    private final int[] inputIndex, outputIndex;
+    private final ToggleObject[] toggles;
+    private final SubcircuitInstance[] nested;
+    private final int stateBits;
+    private final int radius;
+    private final long initial;
+    private final byte[] data;
+    private final HashMap<Long, Behaviour> table = new HashMap<Long, Behaviour>();
+
+    /**
+     * Creates a definition from a set of objects. The objects are serialized
+     * and re-read into a private World, so the arguments are left untouched.
+     * Coordinates are made relative to the center of the objects.
+     * @param name Name shown in menus and saved with the definition
+     * @param objects Template objects (with any links between them)
+     * @param inputs Indexes of Detectors in `objects` that are input ports
+     * @param outputs Indexes of Emitters in `objects` that are output ports
+     */
+    public Subcircuit(String name, WorldObject[] objects, int[] inputs, int[] outputs) {
+        this(name, serialize(center(objects)), inputs, outputs);
+    }
+
+    private Subcircuit(String name, byte[] data, int[] inputs, int[] outputs) {
+        if (inputs.length > MAX_PORTS || outputs.length > MAX_PORTS) {
+            throw new IllegalArgumentException("Subcircuits are limited to " + MAX_PORTS + " inputs and outputs");
+        }
+        this.name = name;
+        this.data = data;
+        this.inputIndex = inputs.clone();
+        this.outputIndex = outputs.clone();
+        world = new World();
+        template = world.read(new ByteArrayInputStream(data));
+        world.place(template);
+        this.inputs = new Detector[inputs.length];
+        for (int i = 0; i < inputs.length; i++) {
+            if (!(template[inputs[i]] instanceof Detector)) throw new IllegalArgumentException("Input ports must be Detectors");
+            this.inputs[i] = (Detector) template[inputs[i]];
+        }
+        this.outputs = new Emitter[outputs.length];
+        for (int i = 0; i < outputs.length; i++) {
+            if (!(template[outputs[i]] instanceof Emitter)) throw new IllegalArgumentException("Output ports must be Emitters");
+            this.outputs[i] = (Emitter) template[outputs[i]];
+        }
+        ArrayList<ToggleObject> t = new ArrayList<ToggleObject>();
+        ArrayList<SubcircuitInstance> n = new ArrayList<SubcircuitInstance>();
+        int bits = 0, r = 0;
+        for (WorldObject obj : template) {
+            if (obj instanceof Clock) throw new IllegalArgumentException("Subcircuits cannot contain Clocks");
+            if (obj instanceof ToggleObject) {
+                t.add((ToggleObject) obj);
+                bits++;
+            }
+            if (obj instanceof SubcircuitInstance) {
+                n.add((SubcircuitInstance) obj);
+                bits += ((SubcircuitInstance) obj).getDefinition().stateBits;
+            }
+            Point p = obj.getPos();
+            r = Math.max(r, (int) Math.ceil(Math.hypot(p.x, p.y)) + obj.getExtent());
+        }
+        if (bits > MAX_STATE_BITS) {
+            throw new IllegalArgumentException("Subcircuits are limited to " + MAX_STATE_BITS + " bits of state");
+        }
+        toggles = t.toArray(new ToggleObject[t.size()]);
+        nested = n.toArray(new SubcircuitInstance[n.size()]);
+        stateBits = bits;
+        radius = r;
+        initial = capture();
+    }
+
+    /**
+     * Copies the objects so that their center lies on the origin
+     */
+    private static WorldObject[] center(WorldObject[] objects) {
+        long sx = 0, sy = 0;
+        for (WorldObject obj : objects) {
+            Point p = obj.getPos();
+            sx += p.x;
+            sy += p.y;
+        }
+        int cx = objects.length > 0 ? (int) (sx / objects.length) : 0;
+        int cy = objects.length > 0 ? (int) (sy / objects.length) : 0;
+        return World.copyGroup(Arrays.asList(objects), -cx, -cy);
+    }
+
+    private static byte[] serialize(WorldObject[] objects) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new World().write(out, objects);
+        return out.toByteArray();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getRadius() {
+        return radius;
+    }
+
+    public int getStateBits() {
+        return stateBits;
+    }
+
+    /**
+     * @return The state the template was defined in
+     */
+    public long getInitialState() {
+        return initial;
+    }
+
+    public int numInputs() {
+        return inputs.length;
+    }
+
+    public int numOutputs() {
+        return outputs.length;
+    }
+
+    /**
+     * Position and extent of an input port in template coordinates
+     * @param i Port
+     * @return The Detector acting as the port
+     */
+    public WorldObject getInput(int i) {
+        return inputs[i];
+    }
+
+    /**
+     * Position, angle and color of an output port in template coordinates
+     * @param i Port
+     * @return The Emitter acting as the port
+     */
+    public Emitter getOutput(int i) {
+        return outputs[i];
+    }
+
+    /**
+     * Looks up how the template behaves for the given inputs and state,
+     * tracing the template only if this combination has not been seen before.
+     * @param in Input bits, one per input port
+     * @param state State bits as returned by a previous Behaviour
+     * @return The settled outputs, next state and internal beams
+     */
+    public synchronized Behaviour evaluate(int in, long state) {
+        Long key = (state << MAX_PORTS) | in;
+        Behaviour res = table.get(key);
+        if (res == null) {
+            restore(state);
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i].force((in & (1 << i)) != 0);
+            }
+            world.rebuildBeams();
+            int out = 0;
+            for (int i = 0; i < outputs.length; i++) {
+                if (outputs[i].getToggle()) out |= 1 << i;
+            }
+            res = new Behaviour(out, capture(), world.getBeams());
+            table.put(key, res);
+        }
+        return res;
+    }
+
+    /**
+     * @return The number of cached truth table rows
+     */
+    public synchronized int cachedRows() {
+        return table.size();
+    }
+
+    private long capture() {
+        long state = 0;
+        int bit = 0;
+        for (ToggleObject t : toggles) {
+            if (t.getToggle()) state |= 1L << bit;
+            bit++;
+        }
+        for (SubcircuitInstance n : nested) {
+            state |= n.getState() << bit;
+            bit += n.getDefinition().stateBits;
+        }
+        return state;
+    }
+
+    private void restore(long state) {
+        int bit = 0;
+        for (ToggleObject t : toggles) {
+            t.setToggle((state & (1L << bit)) != 0);
+            bit++;
+        }
+        for (SubcircuitInstance n : nested) {
+            int bits = n.getDefinition().stateBits;
+            n.setState((state >>> bit) & ((1L << bits) - 1));
+            bit += bits;
+        }
+    }
+
+    /**
+     * Writes the definition (template and ports) to a stream
+     * @param out Stream to write to
+     * @param def Definition to write
+     * @throws IOException
+     */
+    public static void write(DataOutputStream out, Subcircuit def) throws IOException {
+        out.writeUTF(def.name);
+        out.writeInt(def.data.length);
+        out.write(def.data);
+        out.writeInt(def.inputIndex.length);
+        for (int i : def.inputIndex) out.writeInt(i);
+        out.writeInt(def.outputIndex.length);
+        for (int i : def.outputIndex) out.writeInt(i);
+    }
+
+    /**
+     * Reads a definition from a stream, reusing an identical definition already
+     * known to the World so that instances keep sharing one truth table.
+     * @param in Stream to read
+     * @param w World the definition is being read into
+     * @return The definition
+     * @throws IOException
+     */
+    public static Subcircuit read(DataInputStream in, World w) throws IOException {
+        String name = in.readUTF();
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        int[] inputs = new int[in.readInt()];
+        for (int i = 0; i < inputs.length; i++) inputs[i] = in.readInt();
+        int[] outputs = new int[in.readInt()];
+        for (int i = 0; i < outputs.length; i++) outputs[i] = in.readInt();
+        for (Subcircuit def : w.getSubcircuits()) {
+            if (def.name.equals(name) && Arrays.equals(def.data, data)
+                    && Arrays.equals(def.inputIndex, inputs) && Arrays.equals(def.outputIndex, outputs)) {
+                return def;
+            }
+        }
+        Subcircuit def = new Subcircuit(name, data, inputs, outputs);
+        w.addSubcircuit(def);
+        return def;
+    }
+
+}
@@ -0,0 +1,441 @@
+/**
+ *  Copyright 2010 by Benjamin J. Land (a.k.a. BenLand100)
+ *
+ *  This file is part of the Laser Logic Simulator
+ *
+ *  Laser Logic Simulator is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Laser Logic Simulator is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Laser Logic Simulator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lasers;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import lasers.kdimensional.kdPoint;
+import lasers.kdimensional.kdTree;
+
+/**
+ * The objects of a World split into square tiles of `SIZE` world units. Each
+ * tile that holds any object has its own list of them, its own kdTree and
+ * bounds, and edits insert, delete or move the entry in the kdTree of the
+ * tile they happen in, so nothing is ever rebuilt whole. Tiles without
+ * objects do not exist, which is what lets beams skip over empty space a
+ * tile at a time.
+ *
+ * Belongs to one World and is only used by its Engine thread. Forks share
+ * their parent's tiles, and whichever side changes a shared tile first makes
+ * its own copy of it, see `fork`.
+ *
+ * @author benland100
+ */
+final class Tiles {
+
+    //Edge length of a tile in world units
+    static final int SIZE = 512;
+
+    static final class Tile {
+        final int tx, ty;
+        //The objects whose position is in the tile
+        final ArrayList<WorldObject> objs;
+        //Index of `objs`, kept up to date by every edit once built. Built
+        //from `objs` when first needed, e.g. after the tile was copied
+        private kdTree<WorldObject> tree;
+        //Set once the tile is in the table of more than one World, after
+        //which it never changes again
+        private boolean shared;
+        //Bounds of the object positions, and their largest extent. Grown by
+        //edits, and worked out again when next needed if one may have shrunk
+        //them
+        private Rectangle bounds;
+        private int reach;
+        private boolean shrunk;
+
+        private Tile(int tx, int ty, ArrayList<WorldObject> objs) {
+            this.tx = tx;
+            this.ty = ty;
+            this.objs = objs;
+            shrunk = true;
+        }
+
+        /**
+         * @return The kdTree of the tile, built first if needed
+         */
+        kdTree<WorldObject> tree() {
+            if (tree == null) {
+                WorldObject[] dat = objs.toArray(new WorldObject[objs.size()]);
+                Point[] pts = new Point[dat.length];
+                for (int i = 0; i < dat.length; i++) {
+                    pts[i] = dat[i].getPos();
+                }
+                tree = new kdTree<WorldObject>(pts, dat);
+            }
+            return tree;
+        }
+
+        /**
+         * @return The bounds of the object positions in the tile
+         */
+        Rectangle getBounds() {
+            if (shrunk) {
+                bounds = null;
+                reach = 0;
+                for (WorldObject obj : objs) {
+                    grow(obj.getX(), obj.getY(), obj.getExtent());
+                }
+                shrunk = false;
+            }
+            return bounds;
+        }
+
+        /**
+         * @return The largest extent of any object in the tile
+         */
+        int getReach() {
+            getBounds();
+            return reach;
+        }
+
+        private void grow(int x, int y, int extent) {
+            if (bounds == null) {
+                bounds = new Rectangle(x, y, 0, 0);
+            } else {
+                bounds.add(x, y);
+            }
+            reach = Math.max(reach, extent);
+        }
+
+        private void add(WorldObject obj) {
+            objs.add(obj);
+            if (!shrunk) grow(obj.getX(), obj.getY(), obj.getExtent());
+            if (tree != null) tree.insert(new kdPoint(obj.getX(), obj.getY()), obj);
+        }
+
+        private void remove(WorldObject obj, Point at) {
+            for (int i = objs.size() - 1; i >= 0; i--) {
+                if (objs.get(i) == obj) {
+                    objs.set(i, objs.get(objs.size() - 1));
+                    objs.remove(objs.size() - 1);
+                    break;
+                }
+            }
+            shrunk = true;
+            if (tree != null && !tree.delete(new kdPoint(at), obj)) tree = null;
+        }
+
+        private void move(WorldObject obj, Point from) {
+            shrunk = true;
+            if (tree != null && !tree.move(new kdPoint(from), new kdPoint(obj.getX(), obj.getY()), obj)) tree = null;
+        }
+    }
+
+    //The tiles holding any object, in an open addressing table of `key`s
+    //with linear probing, so that looking up a tile never boxes its key. A
+    //slot is empty if its tile is null, and the table is at most half full
+    private long[] keys = new long[16];
+    private Tile[] slots = new Tile[16];
+    private int size;
+
+    //The largest extent of any object added since `clear`. No object further
+    //than this from a point can be hit there
+    private int reach;
+
+    //Nearest searches of the tile a beam step is in, which a beam usually
+    //stays in for several steps, and of its neighbours
+    private kdTree.Cursor<WorldObject> cursor;
+    private final kdTree.Nearest<WorldObject> near = new kdTree.Nearest<WorldObject>();
+
+    //Distance to the object found by the last `nearest`
+    double distance;
+
+    private static long key(int tx, int ty) {
+        return ((long) tx << 32) | (ty & 0xFFFFFFFFL);
+    }
+
+    private static int tile(double v) {
+        return (int) Math.floor(v / SIZE);
+    }
+
+    private static int slot(long k, int mask) {
+        return (int) ((k * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    private Tile get(long k) {
+        int mask = slots.length - 1;
+        for (int i = slot(k, mask); slots[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == k) return slots[i];
+        }
+        return null;
+    }
+
+    private void put(long k, Tile t) {
+        if ((size + 1) * 2 > slots.length) resize(slots.length * 2);
+        int mask = slots.length - 1;
+        int i = slot(k, mask);
+        while (slots[i] != null && keys[i] != k) {
+            i = (i + 1) & mask;
+        }
+        if (slots[i] == null) size++;
+        keys[i] = k;
+        slots[i] = t;
+    }
+
+    /**
+     * Removes a key, moving back any later tile of its probe run that could
+     * not be found past the emptied slot otherwise
+     */
+    private void remove(long k) {
+        int mask = slots.length - 1;
+        int i = slot(k, mask);
+        while (slots[i] != null && keys[i] != k) {
+            i = (i + 1) & mask;
+        }
+        if (slots[i] == null) return;
+        slots[i] = null;
+        size--;
+        for (int j = (i + 1) & mask; slots[j] != null; j = (j + 1) & mask) {
+            int h = slot(keys[j], mask);
+            if (i <= j ? (h <= i || h > j) : (h <= i && h > j)) {
+                keys[i] = keys[j];
+                slots[i] = slots[j];
+                slots[j] = null;
+                i = j;
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Tile[] oldSlots = slots;
+        keys = new long[capacity];
+        slots = new Tile[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] == null) continue;
+            int j = slot(oldKeys[i], mask);
+            while (slots[j] != null) {
+                j = (j + 1) & mask;
+            }
+            keys[j] = oldKeys[i];
+            slots[j] = oldSlots[i];
+        }
+    }
+
+    /**
+     * Returns the tile for a point to change, creating it if needed, and
+     * copying it first if it is shared with another World
+     * @param remap Maps objects of the World this one was forked from to
+     *              their copies in this one, or null
+     */
+    private Tile edit(int x, int y, IdentityHashMap<WorldObject, WorldObject> remap) {
+        int tx = tile(x), ty = tile(y);
+        long k = key(tx, ty);
+        Tile t = get(k);
+        if (t == null) {
+            t = new Tile(tx, ty, new ArrayList<WorldObject>());
+            put(k, t);
+        } else if (t.shared) {
+            ArrayList<WorldObject> objs = new ArrayList<WorldObject>(t.objs.size() + 1);
+            for (WorldObject obj : t.objs) {
+                WorldObject own = remap == null ? null : remap.get(obj);
+                objs.add(own == null ? obj : own);
+            }
+            t = new Tile(tx, ty, objs);
+            put(k, t);
+        }
+        return t;
+    }
+
+    /**
+     * Drops every tile and places the objects given in new ones
+     */
+    void clear(WorldObject[] objs, int count) {
+        Arrays.fill(slots, null);
+        size = 0;
+        cursor = null;
+        reach = 0;
+        for (int i = 0; i < count; i++) {
+            add(objs[i], null);
+        }
+    }
+
+    /**
+     * Adds an object at its current position
+     */
+    void add(WorldObject obj, IdentityHashMap<WorldObject, WorldObject> remap) {
+        edit(obj.getX(), obj.getY(), remap).add(obj);
+        reach = Math.max(reach, obj.getExtent());
+    }
+
+    /**
+     * Removes an object, dropping its tile if that was the last one in it
+     * @param at Where the object was added or last moved to
+     */
+    void remove(WorldObject obj, Point at, IdentityHashMap<WorldObject, WorldObject> remap) {
+        Tile t = edit(at.x, at.y, remap);
+        t.remove(obj, at);
+        if (t.objs.isEmpty()) remove(key(t.tx, t.ty));
+    }
+
+    /**
+     * Moves an object to its current position
+     * @param from Where the object was added or last moved to
+     */
+    void move(WorldObject obj, Point from, IdentityHashMap<WorldObject, WorldObject> remap) {
+        int x = obj.getX(), y = obj.getY();
+        if (tile(from.x) == tile(x) && tile(from.y) == tile(y)) {
+            edit(x, y, remap).move(obj, from);
+        } else {
+            remove(obj, from, remap);
+            add(obj, remap);
+        }
+    }
+
+    /**
+     * @return A Tiles for a fork of the World, sharing every tile with this
+     */
+    Tiles fork() {
+        Tiles f = new Tiles();
+        for (Tile t : slots) {
+            if (t == null) continue;
+            //done now, so neither World ever writes to a shared tile
+            t.tree().share();
+            t.getBounds();
+            t.shared = true;
+        }
+        f.keys = keys.clone();
+        f.slots = slots.clone();
+        f.size = size;
+        f.reach = reach;
+        return f;
+    }
+
+    /**
+     * @return The tiles holding any object
+     */
+    Collection<Tile> tiles() {
+        ArrayList<Tile> res = new ArrayList<Tile>(size);
+        for (Tile t : slots) {
+            if (t != null) res.add(t);
+        }
+        return res;
+    }
+
+    /**
+     * Adds the memory of the tiles and their indexes to a report. Tiles
+     * shared with forks are counted in full by every World sharing them.
+     */
+    void report(MemoryReport r) {
+        long lists = 0, index = 0;
+        int entries = 0;
+        for (Tile t : slots) {
+            if (t == null) continue;
+            //the tile and its list
+            lists += MemoryReport.shallow(Tile.class);
+            lists += MemoryReport.shallow(ArrayList.class) + MemoryReport.array(t.objs.size(), 4);
+            if (t.tree != null) {
+                //a node, its entry, and the entry's point with its coordinates
+                int n = t.tree.size();
+                entries += n;
+                index += MemoryReport.shallow(kdTree.class);
+                index += n * (MemoryReport.shallow(kdTree.TreeNode.class) + MemoryReport.shallow(kdTree.Entry.class)
+                        + MemoryReport.shallow(kdPoint.class) + MemoryReport.array(2, 8));
+            }
+        }
+        r.add("Tiles", lists + MemoryReport.array(keys.length, 8) + MemoryReport.array(slots.length, 4), size + " tiles of " + SIZE + " units");
+        r.add("Tile indexes", index, entries + " entries in kdTrees");
+    }
+
+    /**
+     * @return The bounds of every object position, or null if there are none
+     */
+    Rectangle getBounds() {
+        Rectangle res = null;
+        for (Tile t : slots) {
+            if (t == null) continue;
+            if (res == null) {
+                res = new Rectangle(t.getBounds());
+            } else {
+                res.add(t.getBounds());
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Finds the object nearest to a point, as long as it is near enough for
+     * its extent to reach the point. Only the tile of the point and those of
+     * its neighbours within the largest extent are searched.
+     * @return The object, whose distance is left in `distance`, or null if
+     *         nothing could reach the point
+     */
+    WorldObject nearest(double x, double y) {
+        int tx = tile(x), ty = tile(y);
+        WorldObject best = null;
+        double bd = reach;
+        Tile home = get(key(tx, ty));
+        if (home != null) {
+            kdTree<WorldObject> tree = home.tree();
+            if (cursor == null || cursor.getTree() != tree) {
+                cursor = tree.cursor();
+            }
+            if (cursor.nearest(x, y) && cursor.distance <= bd) {
+                best = cursor.data;
+                bd = cursor.distance;
+            }
+        }
+        int x1 = tile(x - bd), x2 = tile(x + bd);
+        int y1 = tile(y - bd), y2 = tile(y + bd);
+        for (int i = x1; i <= x2; i++) {
+            for (int j = y1; j <= y2; j++) {
+                if (i == tx && j == ty) continue;
+                Tile t = get(key(i, j));
+                if (t == null) continue;
+                Rectangle b = t.getBounds();
+                double dx = Math.max(0, Math.max(b.getMinX() - x, x - b.getMaxX()));
+                double dy = Math.max(0, Math.max(b.getMinY() - y, y - b.getMaxY()));
+                if (dx * dx + dy * dy > bd * bd) continue;
+                if (t.tree().nearest(x, y, near) && (near.distance < bd || best == null && near.distance == bd)) {
+                    best = near.data;
+                    bd = near.distance;
+                }
+            }
+        }
+        distance = bd;
+        return best;
+    }
+
+    /**
+     * Decides how far a ray can go from a point before any object could reach
+     * it: if no tile within the largest extent of the point's tile exists,
+     * that is at least until the ray leaves the tile.
+     * @return The distance along the ray to the edge of the point's tile, or
+     *         0 if something may be in reach of it
+     */
+    double clear(double x, double y, double cos, double sin) {
+        int tx = tile(x), ty = tile(y);
+        int span = (reach + SIZE - 1) / SIZE;
+        for (int i = tx - span; i <= tx + span; i++) {
+            for (int j = ty - span; j <= ty + span; j++) {
+                if (get(key(i, j)) != null) return 0;
+            }
+        }
+        double ex = cos > 0 ? ((tx + 1) * (double) SIZE - x) / cos : cos < 0 ? (tx * (double) SIZE - x) / cos : Double.POSITIVE_INFINITY;
+        double ey = sin > 0 ? ((ty + 1) * (double) SIZE - y) / sin : sin < 0 ? (ty * (double) SIZE - y) / sin : Double.POSITIVE_INFINITY;
+        return Math.min(ex, ey);
+    }
+
+}
@@ -0,0 +1,202 @@
+/**
+ *  Copyright 2010 by Benjamin J. Land (a.k.a. BenLand100)
+ *
+ *  This file is part of the Laser Logic Simulator
+ *
+ *  Laser Logic Simulator is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Laser Logic Simulator is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Laser Logic Simulator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lasers;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A hashed timing wheel for periodic events. Every Entry fires on the ticks t
+ * where t % period == phase, for any positive period. Entries live in an
+ * intrusive list in the slot of their next due tick, so scheduling, cancelling
+ * and firing are all O(1) per entry no matter how many are registered.
+ *
+ * Only the thread calling `advance` ever touches the wheel itself. Other
+ * threads (e.g. the EDT changing a Clock's rate) only record the request on
+ * the Entry and queue it, so they never wait on a tick in progress.
+ *
+ * @author benland100
+ */
+public class TimingWheel {
+
+    /**
+     * Receives the expiry of an Entry
+     */
+    public static interface Listener {
+        /**
+         * Called on the ticking thread when an Entry is due
+         * @param tick The tick being processed
+         */
+        public void expire(long tick);
+    }
+
+    /**
+     * A registration in the wheel. An Entry can be in at most one wheel.
+     */
+    public static class Entry {
+        private final Listener listener;
+        //Requested by any thread, applied by the ticking thread
+        private volatile int requestedPeriod, requestedPhase;
+        //Only touched by the ticking thread
+        private int period, phase;
+        private long due;
+        private Entry prev, next;
+        private boolean linked;
+
+        public Entry(Listener listener) {
+            this.listener = listener;
+        }
+    }
+
+    private final Entry[] slots;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Entry> requests = new ConcurrentLinkedQueue<Entry>();
+    private volatile long tick;
+    private int size;
+
+    /**
+     * @param bits The wheel has 2^bits slots
+     */
+    public TimingWheel(int bits) {
+        slots = new Entry[1 << bits];
+        mask = slots.length - 1;
+        tick = 0;
+    }
+
+    /**
+     * @return The last tick processed
+     */
+    public long now() {
+        return tick;
+    }
+
+    /**
+     * @return The number of scheduled entries, as of the last `advance`
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return True if nothing is scheduled and no requests are pending
+     */
+    public boolean isIdle() {
+        return size == 0 && requests.isEmpty();
+    }
+
+    /**
+     * Requests that an Entry fire every `period` ticks, on the ticks where
+     * tick % period == phase. A period less than 1 cancels the Entry. Takes
+     * effect on the next `advance` and never blocks.
+     * @param entry The Entry
+     * @param period Ticks between firings
+     * @param phase Offset of the firings
+     */
+    public void schedule(Entry entry, int period, int phase) {
+        entry.requestedPeriod = period;
+        entry.requestedPhase = period > 0 ? ((phase % period) + period) % period : 0;
+        requests.add(entry);
+    }
+
+    /**
+     * Requests that an Entry stop firing
+     * @param entry The Entry
+     */
+    public void cancel(Entry entry) {
+        schedule(entry, 0, 0);
+    }
+
+    /**
+     * Applies pending requests, then moves to the next tick firing every Entry
+     * due on it. Must only be called from one thread at a time.
+     * @return The number of entries fired
+     */
+    public int advance() {
+        Entry req;
+        while ((req = requests.poll()) != null) {
+            unlink(req);
+            req.period = req.requestedPeriod;
+            req.phase = req.requestedPhase;
+            if (req.period > 0) {
+                long now = tick;
+                req.due = now + 1 + (((req.phase - now - 1) % req.period) + req.period) % req.period;
+                link(req);
+            }
+        }
+        long now = ++tick;
+        int slot = (int) (now & mask);
+        int fired = 0;
+        Entry e = slots[slot];
+        //Entries rescheduled into this slot are appended after `last` and
+        //belong to a later lap, so stop once the original entries are done
+        Entry last = e == null ? null : e.prev;
+        while (e != null) {
+            Entry next = e == last ? null : e.next;
+            if (e.due == now) {
+                unlink(e);
+                //A failing listener must not stop its own or the other timers
+                try {
+                    e.listener.expire(now);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+                e.due = now + e.period;
+                link(e);
+                fired++;
+            }
+            e = next;
+        }
+        return fired;
+    }
+
+    /**
+     * Appends to the circular list of the Entry's due slot
+     */
+    private void link(Entry e) {
+        int slot = (int) (e.due & mask);
+        Entry head = slots[slot];
+        if (head == null) {
+            e.prev = e.next = e;
+            slots[slot] = e;
+        } else {
+            e.prev = head.prev;
+            e.next = head;
+            head.prev.next = e;
+            head.prev = e;
+        }
+        e.linked = true;
+        size++;
+    }
+
+    private void unlink(Entry e) {
+        if (!e.linked) return;
+        int slot = (int) (e.due & mask);
+        if (e.next == e) {
+            slots[slot] = null;
+        } else {
+            e.prev.next = e.next;
+            e.next.prev = e.prev;
+            if (slots[slot] == e) slots[slot] = e.next;
+        }
+        e.prev = e.next = null;
+        e.linked = false;
+        size--;
+    }
+
+}
@@ -41,4 +41,11 @@ public interface ToggleObject {
      */
     public void setToggle(boolean on);
 
+    /**
+     * Returns the state last set by `setToggle` (or the equivalent state the
+     * object was created or loaded in)
+     * @return The toggle state
+     */
+    public boolean getToggle();
+
 }
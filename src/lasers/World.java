@@ -19,41 +19,54 @@
 
 package lasers;
 
-import lasers.kdimensional.kdTree;
-import lasers.kdimensional.kdPoint;
+import lasers.kdimensional.kdFlatTree;
 import java.awt.AWTEvent;
 import java.awt.Color;
+import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.event.MouseEvent;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 import javax.swing.JFileChooser;
+import javax.swing.JMenu;
 import javax.swing.JMenuItem;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
+import javax.swing.JScrollPane;
 import javax.swing.JSeparator;
+import javax.swing.JTextArea;
 import lasers.objects.Blocker;
 import lasers.objects.Clock;
 import lasers.objects.Detector;
 import lasers.objects.Emitter;
 import lasers.objects.Label;
 import lasers.objects.Mirror;
+import lasers.objects.SubcircuitInstance;
 
 /**
  * The bulk of the program logic is here. This class represents a Laser Simulator
@@ -71,6 +84,13 @@ import lasers.objects.Mirror;
  *      Selections can be coppied, pasted, and deleted
  *      Pasted objects are automatically selections
  *
+ * Threading: the objects, their Tiles and the beams are only ever modified by
+ * this World's Engine thread. GUI callbacks and the public editing methods
+ * wrap their changes in commands for `Engine.post`, and every batch of
+ * commands the Engine drains is followed by a single `settle`. Once settled,
+ * the Engine publishes a Snapshot of everything `paint` needs, so painting
+ * never takes a lock or waits on a settle.
+ *
  * @author benland100
  */
 public class World extends JPanel {
@@ -84,28 +104,72 @@ public class World extends JPanel {
     //first `count` indexes are.
     private WorldObject[] objs;
     private int count;
+
+    //Maps the id of each object to its index in `objs`, or -1 if the id is
+    //not in use. Ids below `ids` that were freed are kept in `free` and
+    //handed out again before any new one
+    private int[] slots;
+    private int ids;
+    private int[] free = new int[16];
+    private int frees;
+
+    //Objects added, removed or moved since `objs` was last sorted along a
+    //Z-order curve, see `reorder`
+    private int churn;
+    //Counts every change to the tiles, so `publish` can tell when the last
+    //Snapshot still has the objects in the same order and places
+    private int layout;
+    //Fewest changes worth sorting `objs` again for
+    private static final int REORDER = 1024;
     
     //The scale of the world (currently 1.0 always) and the origin position.
     //The origin is rendered at the center of the window, always, and is modified
     //by draging the background around
     private double scale,  org_x, org_y;
 
-    //The current list of beams (only the starting segments) that is rebuilt by
-    //calling `rebuildBeams`
-    private final LinkedList<Beam> beams = new LinkedList<Beam>();
+    //The current list of beams (only the starting segments) that is replaced
+    //by calling `rebuildBeams`
+    private Beam[] beams = new Beam[0];
 
     //List that keeps track of what objects need to be retraced while updating
     //the beams list, e.g. objects that were modified by a striking beam that
     //could change the function of another Beam
     private final LinkedList<WorldObject> invalid = new LinkedList<WorldObject>();
 
-    //A kdTree used in calculating Beam interactions with objects and the objects
-    //in the world being clicked. Makes finding objects closest to a point very
-    //easy and fast
-    private kdTree<WorldObject> tree;
+    //True while `rebuildBeams` is running, invalidations outside of it are
+    //meaningless and dropped
+    private boolean settling;
+
+    //Every object a beam touched during the last settle. A ToggleObject that no
+    //beam touches can change state without changing any beam
+    private final IdentityHashMap<WorldObject, Boolean> lit = new IdentityHashMap<WorldObject, Boolean>();
+
+    //The objects split into tiles, each with its own kdTree, used in
+    //calculating Beam interactions with objects. Edits update the kdTree of
+    //the tile they touch in place, beams search the tile they are in through
+    //a kdTree Cursor and skip the space where there are none. Engine thread
+    //only, the GUI searches the Snapshot
+    private Tiles tiles = new Tiles();
+
+    //In a fork still sharing tiles with its parent, maps the parent's objects
+    //that were copied to the copies. Null once the fork rebuilds every tile
+    private volatile IdentityHashMap<WorldObject, WorldObject> remap;
+
+    //Shared objects this World has replaced with its own copy, so that edits
+    //made through stale references (e.g. from the GUI) still find the copy,
+    //and the reverse, so entries can be dropped when the copy is removed
+    private final IdentityHashMap<WorldObject, WorldObject> owned = new IdentityHashMap<WorldObject, WorldObject>();
+    private final IdentityHashMap<WorldObject, WorldObject> owner = new IdentityHashMap<WorldObject, WorldObject>();
 
-    //The bounds (in world coordinates) of the World as reported by `rebuildTree`
-    private Rectangle bounds;
+    //What the EDT sees of this World, replaced whole by the Engine thread
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(new Snapshot());
+
+    //The bounds (in world coordinates) of the World as of the last
+    //`rebuildBeams`, replaced whole
+    private volatile Rectangle bounds = new Rectangle();
+
+    //Beam segments traced by the last settle, and the most by any settle
+    private int beamSegments, peakBeamSegments;
 
     //The maximum necessary length to trace a Beam before assuming it hits nothing
     //which is calculated to be the diagonal length of the bounds intersected
@@ -121,9 +185,9 @@ public class World extends JPanel {
     //associated with that mouse event
     private int clickcount;
 
-    //Marks whether the last Drag invalidated the kdTree, or made a new selection
-    //and the appropriate actions are taken on the next mouserelease
-    private boolean treeInvalid, selectionMade;
+    //Marks whether the last Drag made a new selection and the appropriate
+    //actions are taken on the next mouserelease
+    private boolean selectionMade;
 
     //The current selection rectangle, or null if there is no selection
     private Rectangle selectRect;
@@ -135,18 +199,57 @@ public class World extends JPanel {
     //Speaks for itself, but its used for calculating offsets in dragging mostly
     private Point lastRelevantMousePos;
 
+    //Runs the Clocks of this World
+    private final Engine engine = new Engine(this);
+
+    //Subcircuit definitions known to this World, either defined by the user or
+    //read along with the instances that use them
+    private final ArrayList<Subcircuit> subcircuits = new ArrayList<Subcircuit>();
+
     public World() {
         scale = 1.0;
         count = 0;
         org_x = 0;
         org_y = 0;
         objs = new WorldObject[100];
+        slots = new int[100];
         rebuildTree();
 
         enableEvents(AWTEvent.MOUSE_EVENT_MASK);
         enableEvents(AWTEvent.MOUSE_MOTION_EVENT_MASK);
     }
 
+    /**
+     * @return The Engine running this World's Clocks
+     */
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Releases everything this World holds: every object is cleaned up and the
+     * Engine is stopped. The World should not be used afterwards.
+     */
+    public void dispose() {
+        engine.dispose();
+        for (int i = 0; i < count; i++) {
+            objs[i].cleanup();
+            objs[i] = null;
+        }
+        count = 0;
+        ids = frees = 0;
+        owned.clear();
+        owner.clear();
+        rebuildTree();
+        beams = new Beam[0];
+        snapshot.set(new Snapshot());
+        synchronized (subcircuits) {
+            subcircuits.clear();
+        }
+        selectGroup.clear();
+        linkingObj = clickedObj = null;
+    }
+
     /**
      * Converts a position on the JPanel to a position in the World
      * @param x ScreenX
@@ -191,16 +294,14 @@ public class World extends JPanel {
      * @return The detected object, or null
      */
     public WorldObject objectFromPoint(int x, int y) {
-        try {
-            TreeMap<Double, kdTree.Entry<WorldObject>> res = tree.nnSearch(1, new kdPoint(toWorld(x, y)));
-            if (res.size() > 0) {
-                Double key = res.firstKey();
-                WorldObject obj = res.get(key).data;
-                if (key <= obj.getExtent()) {
-                    return obj;
-                }
+        //the Engine's tiles change in place, so the GUI searches the snapshot
+        Snapshot snap = snapshot.get();
+        Point p = toWorld(x, y);
+        kdFlatTree.Nearest res = new kdFlatTree.Nearest();
+        if (snap.tree().nearest(p.x, p.y, res)) {
+            if (res.distance <= snap.frozen[res.payload].getExtent()) {
+                return snap.live[res.payload];
             }
-        } catch (Exception e) {
         }
         return null;
     }
@@ -212,7 +313,7 @@ public class World extends JPanel {
      *
      * @param beam A beam to follow
      */
-    private synchronized void traceBeam(Beam beam) {
+    private void traceBeam(Beam beam) {
         Beam child = null;
         beam.distance = 0;
         do {
@@ -223,13 +324,22 @@ public class World extends JPanel {
             //interacted with, while smaller increments make it significantly
             //slower, for obvious reasons
             for (int d = 0; d < maxd; d += 3) {
+                double x = beam.org_x + d * cos;
+                double y = beam.org_y + d * sin;
+                //nothing in reach until the beam leaves this tile, so go on
+                //from the first step past its edge
+                double clear = tiles.clear(x, y, cos, sin);
+                if (clear > 0) {
+                    d += 3 * (int) Math.ceil(clear / 3) - 3;
+                    continue;
+                }
                 WorldObject nearest = null;
                 try {
-                    TreeMap<Double, kdTree.Entry<WorldObject>> res = tree.nnSearch(1, new kdPoint(beam.org_x + d * cos, beam.org_y + d * sin));
-                    if (res.size() > 0) {
-                        Double key = res.firstKey();
-                        nearest = res.get(key).data;
-                        if (nearest != beam.origin && key <= nearest.getExtent()) {
+                    nearest = tiles.nearest(x, y);
+                    if (nearest != null) {
+                        nearest = resolve(nearest);
+                        if (nearest != beam.origin && tiles.distance <= nearest.getExtent()) {
+                            lit.put(nearest, Boolean.TRUE);
                             child = nearest.strike(beam);
                             if (child != null) {
                                 child.origin = nearest;
@@ -252,13 +362,44 @@ public class World extends JPanel {
         } while (beam != null);
     }
 
+    /**
+     * Maps an object found in the Tiles to the object in this World
+     */
+    private WorldObject resolve(WorldObject obj) {
+        IdentityHashMap<WorldObject, WorldObject> map = remap;
+        if (map == null) return obj;
+        WorldObject own = map.get(obj);
+        return own == null ? obj : own;
+    }
+
     /**
      * Notifies the world that durring a Beam trace, an object's state became
      * invalid and must be recalculated.
      * @param obj
      */
-    public synchronized void invalidate(WorldObject obj) {
-        invalid.add(obj);
+    public void invalidate(WorldObject obj) {
+        if (settling) invalid.add(obj);
+    }
+
+    /**
+     * Decides whether a change in the state of a ToggleObject could change
+     * any beam, which is only possible if it emits beams itself or a beam
+     * touched it during the last settle. Used by the Engine to skip settles
+     * that cannot change anything.
+     * @param obj The ToggleObject
+     * @return True if a settle is needed after toggling `obj`
+     */
+    public boolean affectsBeams(ToggleObject obj) {
+        return obj instanceof Emitter || lit.containsKey((WorldObject) obj);
+    }
+
+    /**
+     * Repaints the part of the screen showing a rectangle in world coordinates
+     * @param r Region to repaint
+     */
+    public void repaintWorld(Rectangle r) {
+        Point tl = toScreen(r.x, r.y);
+        repaint(tl.x - 1, tl.y - 1, (int) Math.ceil(r.width * scale) + 2, (int) Math.ceil(r.height * scale) + 2);
     }
 
     /**
@@ -266,9 +407,15 @@ public class World extends JPanel {
      * if the calculation takes more than 1000 cycles to complete, e.g. during
      * each calculation cycle objects continue to be invalidated, it is assumed
      * that a race condition has been encountered in the logic, and the beams
-     * are cleared.
+     * are cleared. The new beams replace the old ones only once the state has
+     * settled, so `paint` never sees a half finished settle. Must be called on
+     * the Engine thread (or on a World whose Engine never runs, such as the
+     * one inside a Subcircuit); anything else should use `Engine.requestSettle`.
      */
-    public synchronized void rebuildBeams() {
+    public void rebuildBeams() {
+        Rectangle bounds = tiles.getBounds();
+        if (bounds == null) bounds = new Rectangle();
+        this.bounds = bounds;
         Point tl = toWorld(0,0);
         Point br = toWorld(getWidth(),getHeight());
         double width = Math.max(br.x,bounds.getMaxX()) - Math.min(tl.x, bounds.getMinX());
@@ -276,49 +423,563 @@ public class World extends JPanel {
         maxd = Math.hypot(width,height);
 
         int cycles = 0;
-        synchronized (beams) {
-            do {
-                beams.clear();
-                invalid.clear();
-                for (int i = 0; i < count; i++) {
-                    WorldObject obj = objs[i];
-                    Beam beam = obj.unsettled();
-                    if (beam != null) {
-                        beam.origin = obj;
-                        beams.add(beam);
-                    }
-                }
-                for (Beam beam : beams) {
-                    traceBeam(beam);
-                }
-                for (int i = 0; i < count; i++) {
-                    objs[i].settled();
+        settling = true;
+        LinkedList<Beam> result = new LinkedList<Beam>();
+        do {
+            result.clear();
+            invalid.clear();
+            lit.clear();
+            for (int i = 0; i < count; i++) {
+                WorldObject obj = objs[i];
+                Beam beam = obj.unsettled();
+                while (beam != null) {
+                    beam.origin = obj;
+                    result.add(beam);
+                    beam = beam.sibling;
                 }
-                cycles++;
-            } while (invalid.size() > 0 && cycles < 1000);
-            if (invalid.size() > 0) {
-                invalid.clear();
-                beams.clear();
-                System.err.println("Race condition probably encountered... fix it.");
             }
+            for (Beam beam : result) {
+                traceBeam(beam);
+            }
+            for (int i = 0; i < count; i++) {
+                objs[i].settled();
+            }
+            cycles++;
+        } while (invalid.size() > 0 && cycles < 1000);
+        if (invalid.size() > 0) {
+            invalid.clear();
+            result.clear();
+            System.err.println("Race condition probably encountered... fix it.");
+        }
+        settling = false;
+        beams = result.toArray(new Beam[result.size()]);
+        int segments = 0;
+        for (Beam beam : beams) {
+            for (Beam b = beam; b != null; b = b.child) {
+                segments++;
+            }
+        }
+        beamSegments = segments;
+        peakBeamSegments = Math.max(peakBeamSegments, segments);
+    }
+
+    /**
+     * Returns the starting segments of the beams as of the last `rebuildBeams`.
+     * Same threading rules as `rebuildBeams`.
+     * @return The beams
+     */
+    Beam[] getBeams() {
+        return beams;
+    }
+
+    /**
+     * Places every object in new tiles. Edits normally update only the tile
+     * they touch (see `indexAdd`), so this is only needed after replacing all
+     * the objects. Same threading rules as `rebuildBeams`.
+     */
+    public void rebuildTree() {
+        remap = null;
+        layout++;
+        tiles.clear(objs, count);
+    }
+
+    /**
+     * Adds an object to its tile. Engine thread only.
+     */
+    private void indexAdd(WorldObject obj) {
+        churn++;
+        layout++;
+        tiles.add(obj, remap);
+    }
+
+    /**
+     * Removes an object from its tile. Engine thread only.
+     * @param at Where the object was indexed
+     */
+    private void indexRemove(WorldObject obj, Point at) {
+        churn++;
+        layout++;
+        tiles.remove(obj, at, remap);
+    }
+
+    /**
+     * Moves an object to the tile of its current position. Engine thread
+     * only.
+     * @param from Where the object was indexed
+     */
+    private void indexMove(WorldObject obj, Point from) {
+        churn++;
+        layout++;
+        tiles.move(obj, from, remap);
+    }
+
+    /**
+     * Sorts `objs` along a Z-order (Morton) curve of the object positions, so
+     * objects near each other on the board are near each other in `objs`,
+     * and the passes over them touch neighbouring memory. Ids stay the same,
+     * only the slots they map to change. Done after a load and then whenever
+     * half the objects have changed since. Engine thread only.
+     */
+    private void reorder() {
+        churn = 0;
+        if (count < 2) return;
+        int minx = Integer.MAX_VALUE, miny = Integer.MAX_VALUE;
+        int maxx = Integer.MIN_VALUE, maxy = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            minx = Math.min(minx, objs[i].getX());
+            miny = Math.min(miny, objs[i].getY());
+            maxx = Math.max(maxx, objs[i].getX());
+            maxy = Math.max(maxy, objs[i].getY());
+        }
+        //15 bits a side, so the curve position fits above the index of a
+        //positive long, and sorting the longs sorts the objects
+        double sx = 0x7FFF / Math.max(1.0, (double) maxx - minx);
+        double sy = 0x7FFF / Math.max(1.0, (double) maxy - miny);
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            int qx = (int) ((objs[i].getX() - (double) minx) * sx);
+            int qy = (int) ((objs[i].getY() - (double) miny) * sy);
+            keys[i] = ((long) (spread(qx) | spread(qy) << 1) << 32) | i;
+        }
+        Arrays.sort(keys);
+        WorldObject[] sorted = new WorldObject[objs.length];
+        for (int i = 0; i < count; i++) {
+            sorted[i] = objs[(int) keys[i]];
+            slots[sorted[i].id] = i;
+        }
+        objs = sorted;
+    }
+
+    /**
+     * Spreads the low 15 bits of `v` to the even bits of the result
+     */
+    private static int spread(int v) {
+        v &= 0x7FFF;
+        v = (v | v << 8) & 0x00FF00FF;
+        v = (v | v << 4) & 0x0F0F0F0F;
+        v = (v | v << 2) & 0x33333333;
+        v = (v | v << 1) & 0x55555555;
+        return v;
+    }
+
+    /**
+     * Moves an object, keeping its tile up to date. Engine thread only.
+     */
+    private void moveObject(WorldObject obj, int x, int y) {
+        Point from = obj.getPos();
+        obj.setPos(x, y);
+        indexMove(obj, from);
+    }
+
+    /**
+     * Settles the beams, which first rebuilds whatever tiles were touched.
+     * Called by the Engine after every batch of commands.
+     */
+    void settle() {
+        if (churn >= Math.max(REORDER, count / 2)) reorder();
+        rebuildBeams();
+        publish();
+    }
+
+    /**
+     * Publishes a new Snapshot of every object and the current beams. The
+     * objects are stored a tile at a time, so `paint` can skip the tiles out
+     * of view. If no object was added, removed or moved since the last
+     * Snapshot, its order, areas and tree are reused. Engine thread only.
+     */
+    void publish() {
+        Snapshot last = snapshot.get();
+        if (last.layout == layout) {
+            WorldObject[] frozen = new WorldObject[last.live.length];
+            for (int i = 0; i < frozen.length; i++) {
+                frozen[i] = last.live[i].snapshot();
+            }
+            snapshot.set(last.update(frozen, links(), beams));
+            return;
+        }
+        WorldObject[] live = new WorldObject[count];
+        WorldObject[] frozen = new WorldObject[count];
+        int[] areas = new int[tiles.tiles().size() * 5];
+        int n = 0, k = 0;
+        for (Tiles.Tile t : tiles.tiles()) {
+            for (WorldObject obj : t.objs) {
+                live[n] = resolve(obj);
+                frozen[n] = live[n].snapshot();
+                n++;
+            }
+            Rectangle r = t.getBounds();
+            int e = t.getReach();
+            areas[k++] = r.x - e;
+            areas[k++] = r.y - e;
+            areas[k++] = r.x + r.width + e;
+            areas[k++] = r.y + r.height + e;
+            areas[k++] = n;
+        }
+        snapshot.set(new Snapshot(live, frozen, areas, links(), beams, layout));
+    }
+
+    /**
+     * @return Link lines from the ControlObjects, as x1,y1,x2,y2 quadruples
+     */
+    private int[] links() {
+        int links = 0;
+        for (int i = 0; i < count; i++) {
+            if (objs[i] instanceof ControlObject) links += ((ControlObject) objs[i]).controlled().size();
+        }
+        int[] lines = new int[links * 4];
+        int l = 0;
+        for (int i = 0; i < count; i++) {
+            if (!(objs[i] instanceof ControlObject)) continue;
+            for (ToggleObject obj : ((ControlObject) objs[i]).controlled()) {
+                lines[l++] = objs[i].getX();
+                lines[l++] = objs[i].getY();
+                lines[l++] = ((WorldObject) obj).getX();
+                lines[l++] = ((WorldObject) obj).getY();
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Publishes a new Snapshot in which only the given objects are copied
+     * again, for ticks that changed a few objects but no beams or links.
+     * Engine thread only.
+     * @param changed The objects whose render state changed
+     */
+    void publish(java.util.Collection<WorldObject> changed) {
+        Snapshot last = snapshot.get();
+        WorldObject[] frozen = last.frozen.clone();
+        for (WorldObject obj : changed) {
+            Integer i = last.index().get(obj);
+            if (i != null) {
+                obj.touch();
+                frozen[i] = obj.snapshot();
+            }
+        }
+        snapshot.set(last.update(frozen, last.links, last.beams));
+    }
+
+    /**
+     * @return The latest published Snapshot
+     */
+    public Snapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * Runs `edits` as one transaction: every edit it makes through this
+     * World (adding, removing, moving, linking, ...) is applied by the Engine
+     * in a single pass, followed by one rebuild of each touched tile and one
+     * settle, no matter how many edits there are.
+     * @param edits The edits
+     * @return False if the Engine's queue was full and the edits were dropped
+     */
+    public boolean batch(Runnable edits) {
+        begin();
+        boolean ran = false;
+        try {
+            edits.run();
+            ran = true;
+        } finally {
+            if (!ran) commit();
         }
+        return commit();
+    }
+
+    /**
+     * Opens a transaction on the calling thread, see `batch`
+     */
+    public void begin() {
+        engine.begin();
+    }
+
+    /**
+     * Applies the transaction opened by the last `begin` on the calling thread
+     * @return False if the Engine's queue was full and the edits were dropped
+     */
+    public boolean commit() {
+        return engine.commit();
     }
 
     /**
-     * Rebuilds the kdTree after modifications to objects positions have been
-     * made. If I took the time to write an add and remove feature to my kdTree,
-     * this method could be a lot faster by only changing the objects modified.
+     * Estimates where the memory of this World goes: the objects of each
+     * type, the object table, the tiles and their indexes, the beams, the
+     * links, the Snapshot being drawn and the text of the Labels. Can be
+     * called from any thread.
+     * @return The report
      */
-    public synchronized void rebuildTree() {
-        WorldObject[] dat = new WorldObject[count];
-        kdPoint[] pts = new kdPoint[count];
-        bounds = new Rectangle(count < 1 ? new Point(0,0) : objs[0].getPos());
+    public MemoryReport memoryReport() {
+        if (engine.isEngineThread()) return memoryReportNow();
+        final MemoryReport[] res = new MemoryReport[1];
+        engine.enqueue(new Runnable() {
+            public void run() {
+                res[0] = memoryReportNow();
+            }
+        });
+        try {
+            engine.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return res[0];
+    }
+
+    private MemoryReport memoryReportNow() {
+        MemoryReport r = new MemoryReport();
+        //count and size of the objects of each type, by name
+        TreeMap<String, int[]> types = new TreeMap<String, int[]>();
+        int links = 0, controls = 0, labels = 0;
+        long text = 0;
+        Label longest = null;
+        for (int i = 0; i < count; i++) {
+            WorldObject obj = objs[i];
+            String name = obj.getClass().getSimpleName();
+            int[] n = types.get(name);
+            if (n == null) types.put(name, n = new int[] {0, MemoryReport.shallow(obj.getClass())});
+            n[0]++;
+            if (obj instanceof ControlObject) {
+                controls++;
+                links += ((ControlObject) obj).controlled().size();
+            }
+            if (obj instanceof Label) {
+                labels++;
+                String str = ((Label) obj).getText();
+                text += MemoryReport.string(str.length());
+                if (longest == null || str.length() > longest.getText().length()) longest = (Label) obj;
+            }
+        }
+        for (Map.Entry<String, int[]> e : types.entrySet()) {
+            int[] n = e.getValue();
+            r.add("Objects: " + e.getKey(), n[0] * (long) n[1], n[0] + " objects");
+        }
+        r.add("Object table", MemoryReport.array(objs.length, 4) + MemoryReport.array(slots.length, 4) + MemoryReport.array(free.length, 4), count + " of " + objs.length + " slots used");
+        tiles.report(r);
+        r.add("Beams", MemoryReport.array(beams.length, 4) + beamSegments * (long) MemoryReport.shallow(Beam.class),
+                beams.length + " beams, " + beamSegments + " segments, at most " + peakBeamSegments + " in a settle");
+        r.add("Links", controls * (long) MemoryReport.shallow(LinkedList.class) + links * 24L, links + " links from " + controls + " objects");
+        Snapshot snap = snapshot.get();
+        long copies = 0;
+        int copied = 0;
+        for (int i = 0; i < snap.frozen.length; i++) {
+            if (snap.frozen[i] != snap.live[i]) {
+                copies += MemoryReport.shallow(snap.frozen[i].getClass());
+                copied++;
+            }
+        }
+        r.add("Snapshot", copies + MemoryReport.array(snap.live.length, 4) * 2 + MemoryReport.array(snap.areas.length + snap.links.length, 4) + MemoryReport.array(snap.beams.length, 4),
+                copied + " frozen copies");
+        r.add("Label text", text, labels + " labels" + (longest == null ? "" : ", longest " + longest.getText().length() + " chars at " + longest.getX() + "," + longest.getY()));
+        return r;
+    }
+
+    /**
+     * Shows `memoryReport` in a dialog.
+     * Functions as a GUI callback
+     */
+    public void showMemoryReport() {
+        JTextArea area = new JTextArea(memoryReport().toString());
+        area.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        area.setEditable(false);
+        JOptionPane.showMessageDialog(this, new JScrollPane(area), "Memory Report", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    /**
+     * Creates a copy of this World that shares everything it can with it. The
+     * tiles, the subcircuit definitions and every shareable object (mirrors,
+     * labels and switches or emitters nothing controls) are shared, and only
+     * objects with simulation state (detectors, clocks, subcircuit instances
+     * and whatever they control) are copied, with their links. Shared objects
+     * are copied on write by whichever World changes them first, see `own`.
+     *
+     * The fork is headless and has its own Engine, so it runs independently
+     * of this World on its own thread. Can be called from any thread.
+     * @return The fork, already settled
+     */
+    public World fork() {
+        if (engine.isEngineThread()) return forkNow();
+        final World[] res = new World[1];
+        engine.enqueue(new Runnable() {
+            public void run() {
+                res[0] = forkNow();
+            }
+        });
+        try {
+            engine.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return res[0];
+    }
+
+    private World forkNow() {
+        World f = new World();
+        IdentityHashMap<WorldObject, WorldObject> map = new IdentityHashMap<WorldObject, WorldObject>();
+        WorldObject[] copy = new WorldObject[count];
+        for (int i = 0; i < count; i++) {
+            if (objs[i].isShareable()) {
+                objs[i].share();
+                copy[i] = objs[i];
+            } else {
+                copy[i] = objs[i].duplicate(f);
+                map.put(objs[i], copy[i]);
+            }
+        }
         for (int i = 0; i < count; i++) {
-            bounds.add(objs[i].getPos());
-            dat[i] = objs[i];
-            pts[i] = new kdPoint(objs[i].getPos());
+            if (!(objs[i] instanceof ControlObject)) continue;
+            for (ToggleObject obj : ((ControlObject) objs[i]).controlled()) {
+                WorldObject own = map.get((WorldObject) obj);
+                if (own != null) ((ControlObject) copy[i]).control((ToggleObject) own);
+            }
+        }
+        for (Subcircuit def : getSubcircuits()) {
+            f.addSubcircuit(def);
+        }
+        for (int i = 0; i < count; i++) {
+            copy[i].id = objs[i].id;
+        }
+        f.objs = copy;
+        f.count = count;
+        f.slots = slots.clone();
+        f.ids = ids;
+        f.free = free.clone();
+        f.frees = frees;
+        for (int i = 0; i < count; i++) {
+            if (copy[i] != objs[i]) copy[i].added();
+        }
+        f.tiles = tiles.fork();
+        f.remap = map;
+        f.bounds = bounds;
+        f.maxd = maxd;
+        f.beams = beams;
+        for (WorldObject obj : lit.keySet()) {
+            f.lit.put(f.resolve(obj), Boolean.TRUE);
+        }
+        f.publish();
+        return f;
+    }
+
+    /**
+     * Returns the version of an object this World may change. Objects shared
+     * with forks are replaced by a private copy first, which is returned.
+     * Engine thread only, so edits are made from commands given to
+     * `Engine.post`.
+     * @param obj An object in this World
+     * @return The object to modify in place of `obj`
+     */
+    public WorldObject own(WorldObject obj) {
+        if (!obj.isShared()) return obj;
+        WorldObject copy = owned.get(obj);
+        //the copy may have been shared in turn by a later fork
+        if (copy != null) return own(copy);
+        int i = indexOf(obj);
+        //not in this World (any more), so edits must not reach the original
+        if (i < 0) return obj.duplicate(this);
+        copy = obj.duplicate(this);
+        copy.id = obj.id;
+        objs[i] = copy;
+        copy.added();
+        owned.put(obj, copy);
+        owner.put(copy, obj);
+        indexRemove(obj, obj.getPos());
+        indexAdd(copy);
+        return copy;
+    }
+
+    /**
+     * Finds an object by its id. Engine thread only.
+     * @param id The id, see `WorldObject.getId`
+     * @return The object with that id, or null if there is none
+     */
+    public WorldObject getObject(int id) {
+        if (id < 0 || id >= ids || slots[id] < 0) return null;
+        return objs[slots[id]];
+    }
+
+    /**
+     * @return The index of an object in `objs`, or -1 if it is not in this
+     *         World
+     */
+    private int indexOf(WorldObject obj) {
+        int id = obj.id;
+        if (id < 0 || id >= ids) return -1;
+        int i = slots[id];
+        return i >= 0 && objs[i] == obj ? i : -1;
+    }
+
+    /**
+     * Hands out an id for a new object, reusing freed ones first
+     */
+    private int allocate() {
+        if (frees > 0) return free[--frees];
+        if (ids == slots.length) {
+            int[] temp = new int[slots.length * 2];
+            System.arraycopy(slots, 0, temp, 0, ids);
+            slots = temp;
+        }
+        return ids++;
+    }
+
+    /**
+     * Takes the object at an index out of `objs`, moving the last one into
+     * its place, and frees its id
+     */
+    private void release(int i) {
+        int id = objs[i].id;
+        WorldObject last = objs[count - 1];
+        objs[i] = last;
+        slots[last.id] = i;
+        objs[--count] = null;
+        slots[id] = -1;
+        if (frees == free.length) {
+            int[] temp = new int[free.length * 2];
+            System.arraycopy(free, 0, temp, 0, frees);
+            free = temp;
+        }
+        free[frees++] = id;
+    }
+
+    /**
+     * Appends objects to the World. Engine thread only.
+     * @param array Objects to add
+     */
+    private void insert(WorldObject[] array) {
+        if (count + array.length > objs.length) {
+            //grow geometrically, so adding n objects one by one copies O(n)
+            WorldObject[] temp = new WorldObject[Math.max(objs.length * 2, count + array.length)];
+            System.arraycopy(objs, 0, temp, 0, count);
+            objs = temp;
+        }
+        for (WorldObject obj : array) {
+            obj.id = allocate();
+            slots[obj.id] = count;
+            objs[count++] = obj;
+            obj.added();
+            indexAdd(obj);
+        }
+    }
+
+    /**
+     * Removes a single object from the World. Engine thread only.
+     * @param obj Object to remove
+     */
+    private void remove(WorldObject obj) {
+        int i = indexOf(obj);
+        if (i < 0) return;
+        obj.cleanup();
+        indexRemove(obj, obj.getPos());
+        release(i);
+        disown(obj);
+    }
+
+    /**
+     * Drops the entries of `owned` leading to a removed object
+     */
+    private void disown(WorldObject obj) {
+        WorldObject orig;
+        while ((orig = owner.remove(obj)) != null) {
+            owned.remove(orig);
+            obj = orig;
         }
-        tree = new kdTree<WorldObject>(pts, dat);
     }
 
     /**
@@ -327,27 +988,18 @@ public class World extends JPanel {
      * Functions as a GUI callback
      * @param obj Object to remove
      */
-    public void removeObject(WorldObject obj) {
-        synchronized (objs) {
-            for (int i = 0; i < count; i++) {
-                if (objs[i] == obj) {
-                    obj.cleanup();
-                    if (count - 1 > 0) {
-                        objs[i] = objs[count - 1];
-                    }
-                    count--;
-                    rebuildTree();
-                    rebuildBeams();
-                    break;
-                }
+    public void removeObject(final WorldObject obj) {
+        engine.post(new Runnable() {
+            public void run() {
+                remove(own(obj));
             }
-        }
-        repaint();
+        });
     }
 
     /**
      * Creates and adds the specified ObjectType of object at the specified
-     * coordinates in the World, then returs that object.
+     * coordinates in the World, then returs that object. The object is
+     * inserted by the Engine thread shortly after this returns.
      * Functions as a GUI callback
      * @param type Type of object to create
      * @param local Where to place the object
@@ -378,23 +1030,173 @@ public class World extends JPanel {
                 object = new Label(this);
                 break;
         }
-        synchronized (objs) {
-            if (object != null) {
-                object.setPos(local);
-                if (count + 1 > objs.length) {
-                    WorldObject[] temp = new WorldObject[objs.length + 100];
-                    System.arraycopy(objs, 0, temp, 0, count);
-                    objs = temp;
-                }
-                objs[count++] = object;
-                rebuildTree();
-                rebuildBeams();
+        if (object != null) {
+            object.setPos(local);
+            post(object);
+        }
+        return object;
+    }
+
+    /**
+     * Replaces every object in the World with the given array
+     * @param array The new objects
+     */
+    void setObjects(final WorldObject[] array) {
+        engine.post(new Runnable() {
+            public void run() {
+                place(array);
+            }
+        });
+    }
+
+    /**
+     * Queues new objects for insertion by the Engine thread
+     * @param array Objects to add
+     */
+    private void post(final WorldObject... array) {
+        engine.post(new Runnable() {
+            public void run() {
+                insert(array);
             }
+        });
+    }
+
+    /**
+     * Replaces every object in the World with the given array without
+     * settling, for callers that drive `rebuildBeams` themselves
+     * @param array The new objects
+     */
+    void place(WorldObject[] array) {
+        for (int i = 0; i < count; i++) {
+            objs[i].cleanup();
+        }
+        owned.clear();
+        owner.clear();
+        //copied, since removing objects later reorders `objs`
+        objs = array.clone();
+        count = array.length;
+        slots = new int[Math.max(100, count)];
+        ids = frees = 0;
+        for (int i = 0; i < count; i++) {
+            objs[i].id = allocate();
+            slots[objs[i].id] = i;
+            objs[i].added();
         }
-        repaint();
+        reorder();
+        rebuildTree();
+    }
+
+    /**
+     * Places a new instance of a Subcircuit at the specified coordinates.
+     * Functions as a GUI callback
+     * @param def Definition to instance
+     * @param local Where to place the instance
+     * @return The instance created
+     */
+    public SubcircuitInstance addInstance(Subcircuit def, Point local) {
+        SubcircuitInstance object = new SubcircuitInstance(this, def);
+        addSubcircuit(def);
+        object.setPos(local);
+        post(object);
         return object;
     }
 
+    /**
+     * @return The Subcircuit definitions known to this World
+     */
+    public Subcircuit[] getSubcircuits() {
+        synchronized (subcircuits) {
+            return subcircuits.toArray(new Subcircuit[subcircuits.size()]);
+        }
+    }
+
+    /**
+     * Makes a Subcircuit definition available to this World
+     * @param def The definition
+     */
+    public void addSubcircuit(Subcircuit def) {
+        synchronized (subcircuits) {
+            if (!subcircuits.contains(def)) subcircuits.add(def);
+        }
+    }
+
+    /**
+     * Turns the current selection into a Subcircuit definition. Ports are
+     * declared the same way boards are usually annotated: every Label in the
+     * selection names the Detector (an input) or Emitter (an output) nearest
+     * to it, and ports are ordered by the Label text.
+     * Functions as a GUI callback
+     */
+    private void defineSubcircuit() {
+        if (selectRect == null || selectGroup.isEmpty()) return;
+        String name = JOptionPane.showInputDialog(this, "Subcircuit name", "Subcircuit " + (subcircuits.size() + 1));
+        if (name == null) return;
+        ArrayList<WorldObject> group = new ArrayList<WorldObject>(selectGroup);
+        TreeMap<String, Integer> in = new TreeMap<String, Integer>(), out = new TreeMap<String, Integer>();
+        for (WorldObject obj : group) {
+            if (!(obj instanceof Label)) continue;
+            Point pos = obj.getPos();
+            int best = -1;
+            double dist = Double.MAX_VALUE;
+            for (int i = 0; i < group.size(); i++) {
+                WorldObject port = group.get(i);
+                if (port instanceof Detector || port instanceof Emitter) {
+                    double d = pos.distance(port.getPos());
+                    if (d < dist) {
+                        dist = d;
+                        best = i;
+                    }
+                }
+            }
+            if (best < 0) continue;
+            if (group.get(best) instanceof Detector) {
+                in.put(((Label) obj).getText(), best);
+            } else {
+                out.put(((Label) obj).getText(), best);
+            }
+        }
+        int[] inputs = new int[in.size()], outputs = new int[out.size()];
+        int i = 0;
+        for (Integer idx : in.values()) inputs[i++] = idx;
+        i = 0;
+        for (Integer idx : out.values()) outputs[i++] = idx;
+        try {
+            addSubcircuit(new Subcircuit(name, copyGroup(group, 0, 0), inputs, outputs));
+        } catch (IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(this, e.getMessage());
+        }
+    }
+
+    /**
+     * Duplicates a group of objects, offsetting them by (dx,dy) and keeping
+     * any ControlObject links that are internal to the group
+     * @param group Objects to copy
+     * @param dx X offset
+     * @param dy Y offset
+     * @return The copies, in the same order as `group`
+     */
+    static WorldObject[] copyGroup(java.util.List<WorldObject> group, int dx, int dy) {
+        WorldObject[] copyData = new WorldObject[group.size()];
+        for (int i = 0; i < copyData.length; i++) {
+            copyData[i] = group.get(i).duplicate();
+            Point pos = copyData[i].getPos();
+            pos.translate(dx, dy);
+            copyData[i].setPos(pos);
+        }
+        for (int c = 0; c < copyData.length; c++) {
+            if (!(group.get(c) instanceof ControlObject)) continue;
+            for (ToggleObject obj : ((ControlObject) group.get(c)).controlled()) {
+                for (int i = 0; i < copyData.length; i++) {
+                    if (obj == group.get(i)) {
+                        ((ControlObject)copyData[c]).control((ToggleObject)copyData[i]);
+                        break;
+                    }
+                }
+            }
+        }
+        return copyData;
+    }
+
     /**
      * Signifies an object as a ControlObject waiting to be linked to an object.
      * Functions as a GUI callback
@@ -413,12 +1215,14 @@ public class World extends JPanel {
         int res = choose.showSaveDialog(this);
         if (res == JFileChooser.APPROVE_OPTION) {
             try {
-                FileOutputStream fout = new FileOutputStream(choose.getSelectedFile());
-                synchronized (objs) {
-                    WorldObject[] copy = new WorldObject[count];
-                    System.arraycopy(objs, 0, copy, 0, count);
-                    write(fout,copy);
-                }
+                final FileOutputStream fout = new FileOutputStream(choose.getSelectedFile());
+                engine.post(new Runnable() {
+                    public void run() {
+                        WorldObject[] copy = new WorldObject[count];
+                        System.arraycopy(objs, 0, copy, 0, count);
+                        write(fout,copy);
+                    }
+                });
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -426,7 +1230,32 @@ public class World extends JPanel {
     }
 
     /**
-     * Loads a state by letting the user choose a file to load.
+     * Saves the current state as a MappedBoard by letting the user choose a
+     * file to save to.
+     * Functions as a GUI callback
+     */
+    public void saveMapped() {
+        JFileChooser choose = new JFileChooser();
+        int res = choose.showSaveDialog(this);
+        if (res == JFileChooser.APPROVE_OPTION) {
+            final File file = choose.getSelectedFile();
+            engine.post(new Runnable() {
+                public void run() {
+                    WorldObject[] copy = new WorldObject[count];
+                    System.arraycopy(objs, 0, copy, 0, count);
+                    try {
+                        MappedBoard.write(file, copy);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Loads a state by letting the user choose a file to load, which may be
+     * a MappedBoard.
      * Functions as a GUI callback
      */
     public void load() {
@@ -434,12 +1263,13 @@ public class World extends JPanel {
         int res = choose.showOpenDialog(this);
         if (res == JFileChooser.APPROVE_OPTION) {
             try {
-                FileInputStream fin = new FileInputStream(choose.getSelectedFile());
-                objs = read(fin);
-                count = objs.length;
-                rebuildTree();
-                rebuildBeams();
-                repaint();
+                File file = choose.getSelectedFile();
+                if (MappedBoard.isMapped(file)) {
+                    setObjects(MappedBoard.open(file).load(this));
+                    return;
+                }
+                FileInputStream fin = new FileInputStream(file);
+                setObjects(read(fin));
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -452,22 +1282,16 @@ public class World extends JPanel {
      */
     private void delete() {
         if (selectRect != null) {
-            synchronized (objs) {
-                for (int i = 0; i < count; i++) {
-                    if (selectGroup.contains(objs[i])) {
-                        objs[i].cleanup();
-                        objs[i] = objs[i+1];
-                        objs[i+1] = objs[count-1];
-                        count--;
-                        i--;
+            final WorldObject[] selected = selectGroup.toArray(new WorldObject[selectGroup.size()]);
+            engine.post(new Runnable() {
+                public void run() {
+                    for (WorldObject obj : selected) {
+                        remove(own(obj));
                     }
                 }
-            }
+            });
             selectRect = null;
             selectGroup.clear();
-            rebuildTree();
-            rebuildBeams();
-            repaint();
         }
     }
 
@@ -478,62 +1302,33 @@ public class World extends JPanel {
      * @param world Position to calculate relative positions from
      */
     private void copypaste(boolean copy, Point world) {
-        synchronized (objs) {
-            ClipboardAccess clipboard = new ClipboardAccess();
-            if (copy && selectRect != null) {
-                ArrayList<WorldObject> tocopy = new ArrayList<WorldObject>(selectGroup);
-                WorldObject[] copyData = new WorldObject[tocopy.size()];
-                ControlObject[] controllers = new ControlObject[tocopy.size()];
-                for (int i = 0; i < copyData.length; i++) {
-                    copyData[i] = tocopy.get(i).duplicate();
-                    Point pos = copyData[i].getPos();
-                    pos.translate(-world.x, -world.y);
-                    copyData[i].setPos(pos);
-                    if (tocopy.get(i) instanceof ControlObject) controllers[i] = (ControlObject)tocopy.get(i);
-                }
-                for (int c = 0; c < controllers.length; c++) {
-                    if (controllers[c] == null) continue;
-                    for (ToggleObject obj : controllers[c].controlled()) {
-                        for (int i = 0; i < tocopy.size(); i++) {
-                            if (obj == tocopy.get(i)) {
-                                ((ControlObject)copyData[c]).control((ToggleObject)copyData[i]);
-                                break;
-                            }
-                        }
-                    }
-                }
-                ByteArrayOutputStream out = new ByteArrayOutputStream();
-                write(out,copyData);
-                clipboard.put(new String(out.toByteArray()));
-            } else if (!copy) {
-                WorldObject[] copyData = read(new ByteArrayInputStream(clipboard.get().getBytes()));
-                if (count + copyData.length > objs.length) {
-                    WorldObject[] temp = new WorldObject[objs.length + copyData.length*2];
-                    System.arraycopy(objs, 0, temp, 0, count);
-                    objs = temp;
-                }
-                selectGroup.clear();
-                if (copyData.length < 1) {
-                    selectRect = new Rectangle();
-                } else {
-                    Point pos = copyData[0].getPos();
-                    pos.translate(world.x, world.y);
-                    selectRect = new Rectangle(pos);
-                }
-                for (int i = 0; i < copyData.length; i++) {
-                    Point pos = copyData[i].getPos();
-                    pos.translate(world.x, world.y);
-                    selectRect.add(pos);
-                    copyData[i].setPos(pos);
-                    selectGroup.add(copyData[i]);
-                    objs[count++] = copyData[i];
-                }
-                selectRect.grow(20,20);
-                rebuildTree();
-                rebuildBeams();
-                repaint();
-                copyData = null;
+        ClipboardAccess clipboard = new ClipboardAccess();
+        if (copy && selectRect != null) {
+            WorldObject[] copyData = copyGroup(new ArrayList<WorldObject>(selectGroup), -world.x, -world.y);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            write(out,copyData);
+            byte[] data = out.toByteArray();
+            //the clipboard only holds text, so the GZipped part is Base64 encoded
+            clipboard.put("LASERSv3:" + ClipboardAccess.encode(Arrays.copyOfRange(data, 9, data.length)));
+        } else if (!copy) {
+            WorldObject[] copyData = read(new ByteArrayInputStream(clipboard.get().getBytes()));
+            selectGroup.clear();
+            if (copyData.length < 1) {
+                selectRect = new Rectangle();
+            } else {
+                Point pos = copyData[0].getPos();
+                pos.translate(world.x, world.y);
+                selectRect = new Rectangle(pos);
+            }
+            for (int i = 0; i < copyData.length; i++) {
+                Point pos = copyData[i].getPos();
+                pos.translate(world.x, world.y);
+                selectRect.add(pos);
+                copyData[i].setPos(pos);
+                selectGroup.add(copyData[i]);
             }
+            selectRect.grow(20,20);
+            post(copyData);
         }
     }
 
@@ -544,7 +1339,7 @@ public class World extends JPanel {
     public void selectall() {
         selectRect = (Rectangle)bounds.clone();
         selectRect.grow(20,20);
-        repaint();
+        engine.requestRepaint();
     }
 
     /**
@@ -566,15 +1361,26 @@ public class World extends JPanel {
             result.add(new JMenuItem(new MethodAction("Add Opaque Switch", this, "addObject", null, ObjectType.OPAQUE_BLOCK, pos)));
             result.add(new JMenuItem(new MethodAction("Add Transparent Switch", this, "addObject", null, ObjectType.TRANSPARENT_BLOCK, pos)));
             result.add(new JMenuItem(new MethodAction("Add Label", this, "addObject", null, ObjectType.LABEL, pos)));
+            Subcircuit[] defs = getSubcircuits();
+            if (defs.length > 0) {
+                JMenu sub = new JMenu("Add Subcircuit");
+                for (Subcircuit def : defs) {
+                    sub.add(new JMenuItem(new MethodAction(def.getName(), this, "addInstance", null, def, pos)));
+                }
+                result.add(sub);
+            }
             result.add(new JSeparator());
             result.add(new JMenuItem(new MethodAction("Select All",this,"selectall",null)));
             if (selectRect != null && selectRect.contains(toWorld(x,y))) {
                 result.add(new JMenuItem(new MethodAction("Copy",this,"copypaste",new Class[]{Boolean.TYPE,Point.class},true,toWorld(x,y))));
                 result.add(new JMenuItem(new MethodAction("Delete",this,"delete",null)));
+                result.add(new JMenuItem(new MethodAction("Define Subcircuit",this,"defineSubcircuit",null)));
             }
             result.add(new JMenuItem(new MethodAction("Paste",this,"copypaste",new Class[]{Boolean.TYPE,Point.class},false,toWorld(x,y))));
             result.add(new JSeparator());
             result.add(new JMenuItem(new MethodAction("Save State",this,"save",null)));
+            result.add(new JMenuItem(new MethodAction("Save Mapped State",this,"saveMapped",null)));
+            result.add(new JMenuItem(new MethodAction("Memory Report",this,"showMemoryReport",null)));
             result.add(new JMenuItem(new MethodAction("Load State",this,"load",null)));
         } else {
             result.add(new JMenuItem(new MethodAction("Remove", this, "removeObject", new Class[]{WorldObject.class}, selected)));
@@ -599,50 +1405,60 @@ public class World extends JPanel {
     @Override
     public void processMouseMotionEvent(MouseEvent event) {
         if (linkingObj != null) {
-            repaint();
+            engine.requestRepaint();
         }
         if (event.getID() == MouseEvent.MOUSE_DRAGGED) {
             switch (clickcount) {
                 case 1:
                     if (clickedObj != null) {
-                        Point pos = clickedObj.getPos();
-                        Point loc = toWorld(event.getX(), event.getY());
-                        clickedObj.setAngle(Math.atan2(loc.y - pos.y, loc.x - pos.x));
-                        rebuildBeams();
-                        repaint();
+                        final WorldObject obj = clickedObj;
+                        final Point loc = toWorld(event.getX(), event.getY());
+                        engine.post(new Runnable() {
+                            public void run() {
+                                WorldObject own = own(obj);
+                                Point pos = own.getPos();
+                                own.setAngle(Math.atan2(loc.y - pos.y, loc.x - pos.x));
+                            }
+                        });
                     } else {
                         Point tl = toWorld(lastRelevantMousePos.x,lastRelevantMousePos.y);
                         Point br = toWorld(event.getX(), event.getY());
                         selectRect = new Rectangle(Math.min(tl.x,br.x), Math.min(tl.y,br.y), Math.abs(br.x-tl.x), Math.abs(br.y-tl.y));
                         selectionMade = true;
-                        repaint();
+                        engine.requestRepaint();
                     }
                     break;
                 case 2:
                     if (clickedObj != null) {
-                        clickedObj.setPos(toWorld(event.getX(), event.getY()));
-                        rebuildBeams();
-                        repaint();
-                        treeInvalid = true;
+                        final WorldObject obj = clickedObj;
+                        final Point loc = toWorld(event.getX(), event.getY());
+                        engine.post(new Runnable() {
+                            public void run() {
+                                moveObject(own(obj), loc.x, loc.y);
+                            }
+                        });
                     } else {
                         Point cur = event.getPoint();
                         if (selectRect != null && selectRect.contains(toWorld(lastRelevantMousePos.x,lastRelevantMousePos.y))) {
-                            int dx = (int)Math.round((cur.x - lastRelevantMousePos.x) / scale);
-                            int dy = (int)Math.round((cur.y - lastRelevantMousePos.y) / scale);
+                            final int dx = (int)Math.round((cur.x - lastRelevantMousePos.x) / scale);
+                            final int dy = (int)Math.round((cur.y - lastRelevantMousePos.y) / scale);
                             selectRect.translate(dx,dy);
-                            for (WorldObject o : selectGroup) {
-                                Point p = o.getPos();
-                                p.translate(dx, dy);
-                                o.setPos(p.x,p.y);
-                            }
-                            rebuildTree();
+                            final WorldObject[] group = selectGroup.toArray(new WorldObject[selectGroup.size()]);
+                            engine.post(new Runnable() {
+                                public void run() {
+                                    for (WorldObject o : group) {
+                                        o = own(o);
+                                        Point p = o.getPos();
+                                        moveObject(o, p.x + dx, p.y + dy);
+                                    }
+                                }
+                            });
                         } else {
                             org_x += (cur.x - lastRelevantMousePos.x) / scale;
                             org_y += (cur.y - lastRelevantMousePos.y) / scale;
+                            engine.requestRepaint();
                         }
                         lastRelevantMousePos = cur;
-                        rebuildBeams();
-                        repaint();
                     }
                     break;
             }
@@ -656,7 +1472,7 @@ public class World extends JPanel {
                 lastRelevantMousePos = event.getPoint();
                 clickedObj = objectFromPoint(event.getX(), event.getY());
                 clickcount = event.getClickCount();
-                repaint();
+                engine.requestRepaint();
                 break;
             case MouseEvent.MOUSE_CLICKED:
                 switch (event.getButton()) {
@@ -669,13 +1485,18 @@ public class World extends JPanel {
                         }
                         clickedObj = objectFromPoint(event.getX(), event.getY());
                         if (linkingObj != null && clickedObj instanceof ToggleObject) {
-                            if (((ControlObject)linkingObj).controlled().contains((ToggleObject) clickedObj)) {
-                                ((ControlObject)linkingObj).release((ToggleObject) clickedObj);
-                            } else {
-                                ((ControlObject)linkingObj).control((ToggleObject) clickedObj);
-                            }
-                            rebuildBeams();
-                            repaint();
+                            final ControlObject control = (ControlObject) linkingObj;
+                            final ToggleObject toggle = (ToggleObject) clickedObj;
+                            engine.post(new Runnable() {
+                                public void run() {
+                                    ToggleObject own = (ToggleObject) own((WorldObject) toggle);
+                                    if (control.controlled().contains(own)) {
+                                        control.release(own);
+                                    } else {
+                                        control.control(own);
+                                    }
+                                }
+                            });
                         }
                         linkingObj = null;
                         break;
@@ -691,19 +1512,19 @@ public class World extends JPanel {
             case MouseEvent.MOUSE_RELEASED:
                 if (selectionMade) {
                     selectGroup.clear();
-                    for (int i = 0; i < count; i++) {
-                        if (selectRect.contains(objs[i].getPos())) {
-                            selectGroup.add(objs[i]);
+                    final Snapshot snap = snapshot.get();
+                    final Rectangle rect = selectRect;
+                    snap.tree().rect(rect.getMinX(), rect.getMinY(), rect.getMaxX(), rect.getMaxY(), new kdFlatTree.Visitor() {
+                        public void visit(int i) {
+                            //the query includes the far edges, contains doesn't
+                            if (rect.contains(snap.frozen[i].getPos())) {
+                                selectGroup.add(snap.live[i]);
+                            }
                         }
-                    }
+                    });
                     selectionMade = false;
                 }
-                if (treeInvalid) {
-                    rebuildTree();
-                    rebuildBeams();
-                    treeInvalid = false;
-                }
-                repaint();
+                engine.requestRepaint();
         }
     }
 
@@ -727,34 +1548,40 @@ public class World extends JPanel {
             b = toWorld(b.x, b.y);
             g2d.drawLine((int) (a.x * scale), (int) (a.y * scale), (int) (b.x * scale), (int) (b.y * scale));
         }
-        for (int i = 0; i < count; i++) {
-            if (objs[i] instanceof ControlObject) {
-                g2d.setColor(Color.DARK_GRAY);
-                Point a = objs[i].getPos();
-                for (ToggleObject obj : ((ControlObject) objs[i]).controlled()) {
-                    Point b = ((WorldObject) obj).getPos();
-                    g2d.drawLine((int) (a.x * scale), (int) (a.y * scale), (int) (b.x * scale), (int) (b.y * scale));
-                }
+        Snapshot snap = snapshot.get();
+        g2d.setColor(Color.DARK_GRAY);
+        int[] links = snap.links;
+        for (int i = 0; i < links.length; i += 4) {
+            g2d.drawLine((int) (links[i] * scale), (int) (links[i+1] * scale), (int) (links[i+2] * scale), (int) (links[i+3] * scale));
+        }
+        for (Beam b : snap.beams) {
+            while (b != null) {
+                g2d.setColor(b.c);
+                g2d.drawLine((int) (b.org_x * scale), (int) (b.org_y), (int) ((b.org_x + b.distance * Math.cos(b.angle)) * scale), (int) ((b.org_y + b.distance * Math.sin(b.angle)) * scale));
+                b = b.child;
             }
         }
-        synchronized (beams) {
-            for (Beam b : beams) {
-                while (b != null) {
-                    g2d.setColor(b.c);
-                    g2d.drawLine((int) (b.org_x * scale), (int) (b.org_y), (int) ((b.org_x + b.distance * Math.cos(b.angle)) * scale), (int) ((b.org_y + b.distance * Math.sin(b.angle)) * scale));
-                    b = b.child;
+        //only the tiles in view, with room for text drawn beside objects
+        Rectangle clip = g2d.getClipBounds();
+        Rectangle view = clip == null ? null : new Rectangle((int) (clip.x / scale), (int) (clip.y / scale), (int) Math.ceil(clip.width / scale), (int) Math.ceil(clip.height / scale));
+        if (view != null) view.grow(Tiles.SIZE, Tiles.SIZE);
+        int[] areas = snap.areas;
+        int start = 0;
+        for (int i = 0; i < areas.length; i += 5) {
+            int end = areas[i + 4];
+            if (view == null || view.intersects(areas[i], areas[i + 1], areas[i + 2] - areas[i], areas[i + 3] - areas[i + 1])) {
+                for (int j = start; j < end; j++) {
+                    snap.frozen[j].draw(g2d, scale);
                 }
             }
-        }
-        for (int i = 0; i < count; i++) {
-            objs[i].draw(g2d, scale);
+            start = end;
         }
     }
 
     //Basically, the different methods of reading/writing supported
     private static enum SavingStyles {
         Legacy_Blocker, Legacy_Detector, Legacy_Emitter, Legacy_Mirror, Legacy_Clock, Legacy_Label,
-        Blocker, Detector, Emitter, Mirror, Clock, Label
+        Blocker, Detector, Emitter, Mirror, Clock, Label, Subcircuit, Inline_Subcircuit
     };
     //Maps the Class of an object to a String to be written to the file to
     //identify the data that follows, and then maps the String back to a 
@@ -782,6 +1609,8 @@ public class World extends JPanel {
         read_map.put("m",SavingStyles.Mirror);
         read_map.put("c",SavingStyles.Clock);
         read_map.put("l",SavingStyles.Label);
+        read_map.put("s",SavingStyles.Inline_Subcircuit);
+        read_map.put("i",SavingStyles.Subcircuit);
 
         //Current styles to write
         write_map.put(Blocker.class,"b");
@@ -790,74 +1619,294 @@ public class World extends JPanel {
         write_map.put(Mirror.class,"m");
         write_map.put(Clock.class,"c");
         write_map.put(Label.class,"l");
+        write_map.put(SubcircuitInstance.class,"i");
+    }
+
+    /**
+     * @return The name an object's type is saved under
+     */
+    static String typeName(WorldObject obj) {
+        return write_map.get(obj.getClass());
+    }
+
+    /**
+     * Reads a single object saved under a type name
+     * @param type The type name, as written by `typeName` or an older version
+     * @param din Stream to read
+     * @param defs Subcircuit definitions read from the stream so far
+     * @return The object, or null if the type is unknown
+     * @throws IOException
+     */
+    WorldObject readObject(String type, DataInputStream din, List<Subcircuit> defs) throws IOException {
+        SavingStyles style = read_map.get(type);
+        if (style == null) return null;
+        switch (style) {
+            case Blocker:
+                return Blocker.read(din,this);
+            case Detector:
+                return Detector.read(din,this);
+            case Emitter:
+                return Emitter.read(din,this);
+            case Mirror:
+                return Mirror.read(din,this);
+            case Clock:
+                return Clock.read(din,this);
+            case Label:
+                return Label.read(din,this);
+            case Subcircuit:
+                return SubcircuitInstance.read(din,this,defs);
+            case Inline_Subcircuit:
+                return SubcircuitInstance.read(din,this);
+            case Legacy_Blocker:
+                return Blocker.read_legacy(din,this);
+            case Legacy_Detector:
+                return Detector.read_legacy(din,this);
+            case Legacy_Emitter:
+                return Emitter.read_legacy(din,this);
+            case Legacy_Mirror:
+                return Mirror.read_legacy(din,this);
+            case Legacy_Clock:
+                return Clock.read_legacy(din,this);
+            case Legacy_Label:
+                return Label.read_legacy(din,this);
+        }
+        return null;
+    }
+
+    /**
+     * Writes a single object, without its type name, see `typeName`
+     * @param dout Stream to write to
+     * @param obj Object to write
+     * @param defs Subcircuit definitions written to the stream so far
+     * @throws IOException
+     */
+    static void writeObject(DataOutputStream dout, WorldObject obj, Map<Subcircuit,Integer> defs) throws IOException {
+        switch (read_map.get(typeName(obj))) {
+            case Blocker:
+                Blocker.write(dout,(Blocker)obj);
+                break;
+            case Detector:
+                Detector.write(dout,(Detector)obj);
+                break;
+            case Emitter:
+                Emitter.write(dout,(Emitter)obj);
+                break;
+            case Mirror:
+                Mirror.write(dout,(Mirror)obj);
+                break;
+            case Clock:
+                Clock.write(dout,(Clock)obj);
+                break;
+            case Label:
+                Label.write(dout,(Label)obj);
+                break;
+            case Subcircuit:
+                SubcircuitInstance.write(dout,(SubcircuitInstance)obj,defs);
+                break;
+        }
+    }
+
+    //Type tags of LASERSv3 records, which must never be renumbered
+    static final int TAG_BLOCKER = 0, TAG_DETECTOR = 1, TAG_EMITTER = 2, TAG_MIRROR = 3;
+    static final int TAG_CLOCK = 4, TAG_LABEL = 5, TAG_SUBCIRCUIT = 6;
+    //Version written after the LASERSv3 magic, for changes to the records
+    private static final int V3_VERSION = 0;
+    //Angles are saved as 24 bit fractions of a turn, which is exact for any
+    //multiple of 45 degrees and within 4e-7 radians of any other angle
+    private static final int ANGLE_BITS = 24;
+    private static final double ANGLE_STEP = 2 * Math.PI / (1 << ANGLE_BITS);
+
+    /**
+     * @return The LASERSv3 type tag of an object
+     */
+    static int tagOf(WorldObject obj) {
+        switch (read_map.get(typeName(obj))) {
+            case Blocker:
+                return TAG_BLOCKER;
+            case Detector:
+                return TAG_DETECTOR;
+            case Emitter:
+                return TAG_EMITTER;
+            case Mirror:
+                return TAG_MIRROR;
+            case Clock:
+                return TAG_CLOCK;
+            case Label:
+                return TAG_LABEL;
+            default:
+                return TAG_SUBCIRCUIT;
+        }
+    }
+
+    /**
+     * Writes the state of an object as in LASERSv3, everything but its type
+     * and geometry. A SubcircuitInstance is preceded by the varint index of
+     * its definition in `defs`, and by the definition itself if it was not
+     * there yet.
+     * @param dout Stream to write to
+     * @param obj Object to write
+     * @param defs Subcircuit definitions written so far, with their indexes
+     * @throws IOException
+     */
+    static void writeState(DataOutputStream dout, WorldObject obj, Map<Subcircuit,Integer> defs) throws IOException {
+        switch (tagOf(obj)) {
+            case TAG_BLOCKER:
+                Blocker.write_v3(dout,(Blocker)obj);
+                break;
+            case TAG_DETECTOR:
+                Detector.write_v3(dout,(Detector)obj);
+                break;
+            case TAG_EMITTER:
+                Emitter.write_v3(dout,(Emitter)obj);
+                break;
+            case TAG_MIRROR:
+                Mirror.write_v3(dout,(Mirror)obj);
+                break;
+            case TAG_CLOCK:
+                Clock.write_v3(dout,(Clock)obj);
+                break;
+            case TAG_LABEL:
+                Label.write_v3(dout,(Label)obj);
+                break;
+            case TAG_SUBCIRCUIT:
+                SubcircuitInstance inst = (SubcircuitInstance)obj;
+                Integer d = defs.get(inst.getDefinition());
+                if (d == null) {
+                    writeVarint(dout, defs.size());
+                    Subcircuit.write(dout,inst.getDefinition());
+                    defs.put(inst.getDefinition(), defs.size());
+                } else {
+                    writeVarint(dout, d);
+                }
+                SubcircuitInstance.write_v3(dout,inst);
+                break;
+        }
+    }
+
+    /**
+     * Reads the state of an object written by `writeState`
+     * @param tag The LASERSv3 type tag of the object
+     * @param din Stream to read
+     * @param defs Subcircuit definitions read so far, in order
+     * @return The object, without its geometry
+     * @throws IOException
+     */
+    WorldObject readState(int tag, DataInputStream din, List<Subcircuit> defs) throws IOException {
+        switch (tag) {
+            case TAG_BLOCKER:
+                return Blocker.read_v3(din,this);
+            case TAG_DETECTOR:
+                return Detector.read_v3(din,this);
+            case TAG_EMITTER:
+                return Emitter.read_v3(din,this);
+            case TAG_MIRROR:
+                return Mirror.read_v3(din,this);
+            case TAG_CLOCK:
+                return Clock.read_v3(din,this);
+            case TAG_LABEL:
+                return Label.read_v3(din,this);
+            case TAG_SUBCIRCUIT:
+                int d = (int) readVarint(din);
+                if (d == defs.size()) defs.add(Subcircuit.read(din,this));
+                if (d >= defs.size()) throw new IOException("Unknown subcircuit " + d);
+                return SubcircuitInstance.read_v3(din,this,defs.get(d));
+            default:
+                throw new IOException("Unknown object type " + tag);
+        }
+    }
+
+    /**
+     * Writes an unsigned LEB128 varint, 7 bits per byte with the low bits first
+     */
+    static void writeVarint(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    static long readVarint(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Maps signed values to unsigned ones so that small magnitudes of either
+     * sign make short varints: 0, -1, 1, -2... become 0, 1, 2, 3...
+     */
+    static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void writeAngle(DataOutputStream out, double angle) throws IOException {
+        double turns = angle / (2 * Math.PI);
+        int q = (int) Math.round((turns - Math.floor(turns)) * (1 << ANGLE_BITS)) & ((1 << ANGLE_BITS) - 1);
+        out.writeByte(q >>> 16);
+        out.writeShort(q & 0xFFFF);
+    }
+
+    private static double readAngle(DataInputStream in) throws IOException {
+        int q = (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+        return q * ANGLE_STEP;
     }
 
     /**
      * Reads a Stream to a WorldObject array. Currently supports all previous
-     * version's save states, including raw ones.
+     * version's save states, including raw ones. LASERSv3 streams are decoded
+     * as they are read, older ones are read whole first.
      * @param in Stream to read
      * @return A new WorldObject[] array derrived from the Stream, or null
      */
     public WorldObject[] read(InputStream in) {
         try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            byte[] buffer = new byte[0xFFFF];
-            int len;
-            while ((len = in.read(buffer, 0, 0xFFFF)) > 0)
-                out.write(buffer,0,len);
-            byte[] data = out.toByteArray();
+            BufferedInputStream bin = new BufferedInputStream(in);
+            bin.mark(16);
+            byte[] magic = new byte[9];
+            int n = 0, len;
+            while (n < magic.length && (len = bin.read(magic, n, magic.length - n)) > 0)
+                n += len;
+            String head = new String(magic, 0, n);
             DataInputStream din;
-            if (new String(data,0,9).equals("LASERSv2:")) {
-                data = ClipboardAccess.decode(new String(data,9,data.length-9));
+            if (head.equals("LASERSv3:")) {
+                bin.mark(1);
+                boolean binary = bin.read() == 0x1f;
+                bin.reset();
+                if (binary) {
+                    din = new DataInputStream(new BufferedInputStream(new GZIPInputStream(bin)));
+                } else {
+                    byte[] data = ClipboardAccess.decode(readText(bin));
+                    din = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new ByteArrayInputStream(data))));
+                }
+                WorldObject[] array = read_v3(din);
+                din.close();
+                return array;
+            } else if (head.equals("LASERSv2:")) {
+                byte[] data = ClipboardAccess.decode(readText(bin));
                 din = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(data)));
-            } else if (new String(data,0,9).equals("LASERSv1:")) {
-                data = ClipboardAccess.decode(new String(data,9,data.length-9));
+            } else if (head.equals("LASERSv1:")) {
+                byte[] data = ClipboardAccess.decode(readText(bin));
                 din = new DataInputStream(new ByteArrayInputStream(data));
             } else {
-                din = new DataInputStream(new ByteArrayInputStream(data));
+                bin.reset();
+                din = new DataInputStream(bin);
             }
             int num = din.readInt();
             WorldObject[] array = new WorldObject[num];
+            ArrayList<Subcircuit> defs = new ArrayList<Subcircuit>();
             for (int i = 0; i < num; i++) {
                 String type = din.readUTF();
-                switch (read_map.get(type)) {
-                    case Blocker:
-                        array[i] = Blocker.read(din,this);
-                        break;
-                    case Detector:
-                        array[i] = Detector.read(din,this);
-                        break;
-                    case Emitter:
-                        array[i] = Emitter.read(din,this);
-                        break;
-                    case Mirror:
-                        array[i] = Mirror.read(din,this);
-                        break;
-                    case Clock:
-                        array[i] = Clock.read(din,this);
-                        break;
-                    case Label:
-                        array[i] = Label.read(din,this);
-                        break;
-                    case Legacy_Blocker:
-                        array[i] = Blocker.read_legacy(din,this);
-                        break;
-                    case Legacy_Detector:
-                        array[i] = Detector.read_legacy(din,this);
-                        break;
-                    case Legacy_Emitter:
-                        array[i] = Emitter.read_legacy(din,this);
-                        break;
-                    case Legacy_Mirror:
-                        array[i] = Mirror.read_legacy(din,this);
-                        break;
-                    case Legacy_Clock:
-                        array[i] = Clock.read_legacy(din,this);
-                        break;
-                    case Legacy_Label:
-                        array[i] = Label.read_legacy(din,this);
-                        break;
-                }
+                array[i] = readObject(type, din, defs);
+                if (array[i] == null) throw new IOException("Unknown object type " + type);
             }
             int numcontrol = din.readInt();
             for (int i = 0; i < numcontrol; i++) {
@@ -882,69 +1931,67 @@ public class World extends JPanel {
     }
 
     /**
-     * Writes a WorldObject array to a Stream as a GZipped and Base64 encoded
-     * representation of the array. Currently, this method handles ControlObject
-     * links on its own, so ControlObjects should not attempt to save their
-     * controlled states, it will all be done here
+     * @return The rest of a Stream as (Base64) text
+     */
+    private static String readText(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[0xFFFF];
+        int len;
+        while ((len = in.read(buffer, 0, 0xFFFF)) > 0)
+            out.write(buffer,0,len);
+        return new String(out.toByteArray());
+    }
+
+    /**
+     * Reads the GZipped part of a LASERSv3 stream, see `write_v3`
+     */
+    private WorldObject[] read_v3(DataInputStream din) throws IOException {
+        int version = (int) readVarint(din);
+        if (version != V3_VERSION) throw new IOException("Unknown LASERSv3 version " + version);
+        int num = (int) readVarint(din);
+        WorldObject[] array = new WorldObject[num];
+        ArrayList<Subcircuit> defs = new ArrayList<Subcircuit>();
+        long x = 0, y = 0;
+        for (int i = 0; i < num; i++) {
+            int tag = din.readUnsignedByte();
+            x += unzigzag(readVarint(din));
+            y += unzigzag(readVarint(din));
+            int extent = (int) readVarint(din);
+            double angle = readAngle(din);
+            WorldObject obj = readState(tag, din, defs);
+            obj.x = (int) x;
+            obj.y = (int) y;
+            obj.extent = extent;
+            obj.angle = angle;
+            array[i] = obj;
+        }
+        int numcontrol = (int) readVarint(din);
+        for (int i = 0; i < numcontrol; i++) {
+            ControlObject obj = (ControlObject)array[(int) readVarint(din)];
+            int numtoggle = (int) readVarint(din);
+            for (int c = 0; c < numtoggle; c++) {
+                obj.control((ToggleObject)array[(int) readVarint(din)]);
+            }
+        }
+        return array;
+    }
+
+    /**
+     * Writes a WorldObject array to a Stream as "LASERSv3:" followed by a
+     * GZipped binary representation of the array, see `write_v3`. Currently,
+     * this method handles ControlObject links on its own, so ControlObjects
+     * should not attempt to save their controlled states, it will all be done
+     * here
      * @param out Stream to write to
      * @param array Array to export
      */
     public void write(OutputStream out, WorldObject[] array) {
         try {
-            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-            DataOutputStream dout = new DataOutputStream(new GZIPOutputStream(bytes));
-            dout.writeInt(array.length);
-            for (int i = 0; i < array.length; i++) {
-                String name = write_map.get(array[i].getClass());
-                dout.writeUTF(name);
-                switch (read_map.get(name)) {
-                    case Blocker:
-                        Blocker.write(dout,(Blocker)array[i]);
-                        break;
-                    case Detector:
-                        Detector.write(dout,(Detector)array[i]);
-                        break;
-                    case Emitter:
-                        Emitter.write(dout,(Emitter)array[i]);
-                        break;
-                    case Mirror:
-                        Mirror.write(dout,(Mirror)array[i]);
-                        break;
-                    case Clock:
-                        Clock.write(dout,(Clock)array[i]);
-                        break;
-                    case Label:
-                        Label.write(dout,(Label)array[i]);
-                        break;
-                }
-            }
-            HashMap<Integer,LinkedList<Integer>> control_map = new HashMap<Integer,LinkedList<Integer>>();
-            for (int i = 0; i < array.length; i++) {
-                if (array[i] instanceof ControlObject) {
-                    LinkedList<Integer> toggles = new LinkedList<Integer>();
-                    for (ToggleObject obj : ((ControlObject)array[i]).controlled()) {
-                        for (int c = 0; c < array.length; c++) {
-                            if (array[c] == obj) {
-                                toggles.add(c);
-                            }
-                        }
-                    }
-                    control_map.put(i,toggles);
-                }
-            }
-            dout.writeInt(control_map.size());
-            for (Map.Entry<Integer,LinkedList<Integer>> entry : control_map.entrySet()) {
-                dout.writeInt(entry.getKey());
-                LinkedList<Integer> elems = entry.getValue();
-                dout.writeInt(elems.size());
-                for (Integer i : elems) {
-                    dout.writeInt(i);
-                }
-            }
+            OutputStream bout = new BufferedOutputStream(out);
+            bout.write("LASERSv3:".getBytes());
+            DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(bout)));
+            write_v3(dout, array);
             dout.close();
-            byte[] data = bytes.toByteArray();
-            out.write("LASERSv2:".getBytes());
-            out.write(new String(ClipboardAccess.encode(data)).getBytes());
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
@@ -956,5 +2003,56 @@ public class World extends JPanel {
         }
     }
 
+    /**
+     * Writes the body of a LASERSv3 stream:
+     *      V3_VERSION and the number of objects as varints
+     *      per object: a one byte type tag, x and y as zigzag varints of their
+     *                  difference to the previous object, extent as a varint,
+     *                  the angle in three bytes (see `ANGLE_BITS`), then the
+     *                  state written by the `write_v3` of its class. A
+     *                  SubcircuitInstance is preceded by the varint index of
+     *                  its definition in the stream, and the definition itself
+     *                  the first time it is used
+     *      links:      the number of ControlObjects, then for each its index,
+     *                  the number of objects it controls and their indexes,
+     *                  all as varints
+     */
+    private static void write_v3(DataOutputStream dout, WorldObject[] array) throws IOException {
+        writeVarint(dout, V3_VERSION);
+        writeVarint(dout, array.length);
+        IdentityHashMap<Subcircuit,Integer> defs = new IdentityHashMap<Subcircuit,Integer>();
+        long x = 0, y = 0;
+        int numcontrol = 0;
+        for (WorldObject obj : array) {
+            dout.writeByte(tagOf(obj));
+            writeVarint(dout, zigzag(obj.x - x));
+            writeVarint(dout, zigzag(obj.y - y));
+            writeVarint(dout, obj.extent & 0xFFFFFFFFL);
+            writeAngle(dout, obj.angle);
+            x = obj.x;
+            y = obj.y;
+            writeState(dout, obj, defs);
+            if (obj instanceof ControlObject) numcontrol++;
+        }
+        IdentityHashMap<WorldObject,Integer> index = new IdentityHashMap<WorldObject,Integer>(array.length * 2);
+        for (int i = 0; i < array.length; i++) {
+            index.put(array[i], i);
+        }
+        writeVarint(dout, numcontrol);
+        ArrayList<Integer> toggles = new ArrayList<Integer>();
+        for (int i = 0; i < array.length; i++) {
+            if (!(array[i] instanceof ControlObject)) continue;
+            toggles.clear();
+            for (ToggleObject obj : ((ControlObject)array[i]).controlled()) {
+                Integer c = index.get((WorldObject) obj);
+                if (c != null) toggles.add(c);
+            }
+            writeVarint(dout, i);
+            writeVarint(dout, toggles.size());
+            for (Integer c : toggles) {
+                writeVarint(dout, c);
+            }
+        }
+    }
 
 }
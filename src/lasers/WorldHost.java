@@ -0,0 +1,199 @@
+/**
+ *  Copyright 2010 by Benjamin J. Land (a.k.a. BenLand100)
+ *
+ *  This file is part of the Laser Logic Simulator
+ *
+ *  Laser Logic Simulator is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Laser Logic Simulator is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Laser Logic Simulator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lasers;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs the Engines of many Worlds on one fixed pool of worker threads, instead
+ * of a thread per World. Scheduling is round robin: an Engine with work joins
+ * the back of the run queue, a worker runs one pass of it (at most `quantum`
+ * commands followed by one settle) and, if it still has work, puts it at the
+ * back again. A busy World therefore gets one turn per round like every
+ * other, and never more than one worker at a time.
+ *
+ * Every registered World also gets a bounded command queue, so edits from
+ * producers that outpace a World are turned away by `Engine.post` instead
+ * of growing the queue without limit. Engine reports the CPU time its passes
+ * used, see `Engine.getCpuTime`.
+ *
+ * @author benland100
+ */
+public class WorldHost {
+
+    public static final int DEFAULT_QUANTUM = 256;
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final LinkedBlockingQueue<Engine> ready = new LinkedBlockingQueue<Engine>();
+    private final CopyOnWriteArrayList<Engine> engines = new CopyOnWriteArrayList<Engine>();
+    private final Thread[] workers;
+    private final Thread ticker;
+    private final int quantum, capacity;
+    private volatile boolean shutdown = false;
+
+    /**
+     * Creates a host with one worker per available processor
+     */
+    public WorldHost() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUANTUM, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param threads Number of worker threads
+     * @param quantum Maximum number of commands a World runs per turn
+     * @param capacity Maximum number of commands queued per World
+     */
+    public WorldHost(int threads, int quantum, int capacity) {
+        this.quantum = quantum;
+        this.capacity = capacity;
+        workers = new Thread[Math.max(threads, 1)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread("laser-host-" + i) {
+                @Override
+                public void run() {
+                    work();
+                }
+            };
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        ticker = new Thread("laser-host-ticker") {
+            @Override
+            public void run() {
+                tick();
+            }
+        };
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * Moves a World's Engine onto this host. Waits for anything the Engine is
+     * doing on its own thread to finish first.
+     * @param w The World
+     * @throws InterruptedException
+     */
+    public void register(World w) throws InterruptedException {
+        if (shutdown) throw new IllegalStateException("WorldHost is shut down");
+        Engine e = w.getEngine();
+        e.setQuantum(quantum);
+        e.setCapacity(capacity);
+        engines.add(e);
+        e.attach(this);
+    }
+
+    /**
+     * Moves a World's Engine back onto a thread of its own
+     * @param w The World
+     * @throws InterruptedException
+     */
+    public void unregister(World w) throws InterruptedException {
+        Engine e = w.getEngine();
+        if (engines.remove(e)) {
+            e.attach(null);
+            e.setQuantum(Integer.MAX_VALUE);
+            e.setCapacity(Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * @return The number of registered Worlds
+     */
+    public int size() {
+        return engines.size();
+    }
+
+    /**
+     * @return The total CPU time used by the registered Worlds, in nanoseconds
+     */
+    public long getCpuTime() {
+        long total = 0;
+        for (Engine e : engines) {
+            total += e.getCpuTime();
+        }
+        return total;
+    }
+
+    /**
+     * Stops the workers. Registered Worlds stop running until they are
+     * disposed or unregistered.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (Thread t : workers) {
+            t.interrupt();
+        }
+        ticker.interrupt();
+    }
+
+    /**
+     * Called by an Engine that has work, with the Engine's lock held
+     */
+    void ready(Engine e) {
+        ready.add(e);
+    }
+
+    /**
+     * Called by a disposed Engine
+     */
+    void forget(Engine e) {
+        engines.remove(e);
+    }
+
+    private void work() {
+        while (!shutdown) {
+            Engine e;
+            try {
+                e = ready.take();
+            } catch (InterruptedException ex) {
+                continue;
+            }
+            try {
+                if (e.runHosted(this)) {
+                    ready.add(e);
+                }
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private void tick() {
+        long next = System.currentTimeMillis() + Engine.TICK;
+        while (!shutdown) {
+            long time = System.currentTimeMillis();
+            if (time < next) {
+                try {
+                    Thread.sleep(next - time);
+                } catch (InterruptedException ex) {
+                    continue;
+                }
+                continue;
+            }
+            //don't try to catch up on ticks missed while busy
+            next = Math.max(next + Engine.TICK, time);
+            for (Engine e : engines) {
+                e.tick();
+            }
+        }
+    }
+
+}
@@ -42,6 +42,14 @@ public abstract class WorldObject {
     protected int x, y;
     protected double angle;
     protected final World world;
+    //Id of the object in the World it was added to, or -1 before then. Stays
+    //the same for as long as the object is in that World, see `World.getObject`
+    int id = -1;
+    //Set once the object is shared between a World and its forks, after which
+    //it must never change again; Worlds copy it first (see `World.own`)
+    private volatile boolean shared;
+    //Copy last handed out by `snapshot`, reused until the object changes
+    private WorldObject frozen;
 
     /**
      * Constructs a default WorldObject in the specified World
@@ -92,12 +100,22 @@ public abstract class WorldObject {
 
     /**
      * Tells an object to copy itself
+     * @param w World the copy belongs to
      * @return A copy
      */
-    protected abstract WorldObject impl_duplicate();
+    protected abstract WorldObject impl_duplicate(World w);
 
     public final WorldObject duplicate() {
-        WorldObject res = impl_duplicate();
+        return duplicate(world);
+    }
+
+    /**
+     * Copies the object into another World, without any links
+     * @param w World the copy belongs to
+     * @return A copy
+     */
+    public final WorldObject duplicate(World w) {
+        WorldObject res = impl_duplicate(w);
         res.angle = angle;
         res.extent = extent;
         res.x = x;
@@ -105,6 +123,50 @@ public abstract class WorldObject {
         return res;
     }
 
+    /**
+     * Copies everything `draw` needs, for a Snapshot. The copy is only ever
+     * drawn, never added to a World, so the same copy is handed out until
+     * `touch` is called. Engine thread only.
+     * @return A copy that draws like this object does now
+     */
+    public final WorldObject snapshot() {
+        if (shared) return this;
+        if (frozen == null) frozen = duplicate();
+        return frozen;
+    }
+
+    /**
+     * Must be called whenever something `draw` uses changes, so the next
+     * Snapshot copies the object again
+     */
+    protected final void touch() {
+        frozen = null;
+    }
+
+    /**
+     * Whether a fork may share this object instead of copying it, which is
+     * only true of objects whose state never changes during a simulation
+     * @return True if the object can be shared
+     */
+    public boolean isShareable() {
+        return false;
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    void share() {
+        shared = true;
+    }
+
+    /**
+     * Called after an object is placed in a World, as opposed to merely
+     * constructed (e.g. copies made for the clipboard are never added)
+     */
+    public void added() {
+    }
+
     /**
      * Called before an object is removed from a World
      */
@@ -121,15 +183,38 @@ public abstract class WorldObject {
 
     public void setAngle(double angle) {
         this.angle = angle;
+        touch();
     }
 
     public Point getPos() {
         return new Point(x, y);
     }
 
+    /**
+     * @return The id of the object in its World, or -1 if it was never added
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return X of the position, without allocating a Point like `getPos`
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * @return Y of the position, without allocating a Point like `getPos`
+     */
+    public int getY() {
+        return y;
+    }
+
     public void setPos(int x, int y) {
         this.x = x;
         this.y = y;
+        touch();
     }
 
     public void setPos(Point local) {
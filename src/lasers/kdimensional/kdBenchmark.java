@@ -0,0 +1,406 @@
+/**
+ *  Copyright 2010 by Benjamin J. Land (a.k.a. BenLand100)
+ *
+ *  This file is part of the Laser Logic Simulator
+ *
+ *  Laser Logic Simulator is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Laser Logic Simulator is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Laser Logic Simulator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lasers.kdimensional;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * Rough benchmarks of the kdTree queries the simulator depends on. Run with
+ * `java -cp build/classes lasers.kdimensional.kdBenchmark`. The heap figures
+ * are only reliable with `-XX:+UseSerialGC`, other collectors account for
+ * large arrays in whole regions.
+ *
+ * @author benland100
+ */
+public class kdBenchmark {
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    /**
+     * @return Bytes allocated by the calling thread so far, or -1 if the JVM
+     *         cannot tell
+     */
+    private static long allocated() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) threads;
+            if (t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled()) {
+                return t.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static kdTree<Integer> random(int n, Random r) {
+        kdPoint[] pts = new kdPoint[n];
+        Integer[] data = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            pts[i] = new kdPoint(r.nextDouble() * 10000, r.nextDouble() * 10000);
+            data[i] = i;
+        }
+        return new kdTree<Integer>(pts, data);
+    }
+
+    /**
+     * Times `nearest` against `nnSearch(1, ...)` and checks that `nearest`
+     * allocates nothing per query
+     */
+    private static void nearest(int n, int queries) {
+        Random r = new Random(1);
+        kdTree<Integer> tree = random(n, r);
+        double[] qx = new double[queries], qy = new double[queries];
+        for (int i = 0; i < queries; i++) {
+            qx[i] = r.nextDouble() * 10000;
+            qy[i] = r.nextDouble() * 10000;
+        }
+        kdTree.Nearest<Integer> res = new kdTree.Nearest<Integer>();
+        double sum = 0, warm = 0;
+        //warm up so the JIT has compiled (and escape analysed) both paths
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < queries; i++) {
+                tree.nearest(qx[i], qy[i], res);
+                warm += res.distance;
+                warm -= tree.nnSearch(1, qx[i], qy[i]).firstKey();
+            }
+        }
+        if (Math.abs(warm) > 1e-6 * queries) System.out.println("MISMATCH between nearest and nnSearch");
+        long bytes = allocated();
+        long time = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            tree.nearest(qx[i], qy[i], res);
+            sum += res.distance;
+        }
+        time = System.nanoTime() - time;
+        bytes = bytes < 0 ? -1 : allocated() - bytes;
+        long oldBytes = allocated();
+        long oldTime = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            sum -= tree.nnSearch(1, qx[i], qy[i]).firstKey();
+        }
+        oldTime = System.nanoTime() - oldTime;
+        oldBytes = oldBytes < 0 ? -1 : allocated() - oldBytes;
+        System.out.printf("nearest   n=%d: %.1f ns/query, %s bytes/query%n", n, (double) time / queries, bytes < 0 ? "?" : String.format("%.2f", (double) bytes / queries));
+        System.out.printf("nnSearch  n=%d: %.1f ns/query, %s bytes/query%n", n, (double) oldTime / queries, oldBytes < 0 ? "?" : String.format("%.2f", (double) oldBytes / queries));
+        if (Math.abs(sum) > 1e-6 * queries) System.out.println("MISMATCH between nearest and nnSearch");
+        //a few hundred bytes are the measurement itself, anything that scales
+        //with the number of queries is an allocation in `nearest`
+        if (bytes >= queries) System.out.println("FAIL: nearest allocated " + bytes + " bytes");
+    }
+
+    /**
+     * @return Heap in use after collecting garbage, roughly
+     */
+    private static long used() {
+        Runtime rt = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        //collect until nothing more is freed
+        while (true) {
+            System.gc();
+            long now = rt.totalMemory() - rt.freeMemory();
+            if (now >= used) return used;
+            used = now;
+        }
+    }
+
+    /**
+     * Compares kdFlatTree to kdTree: build time, retained heap, and nearest
+     * queries, checking both find the same distances
+     */
+    private static void flat(int n, int queries) {
+        Random r = new Random(2);
+        double[] coords = new double[n * 2];
+        kdPoint[] pts = new kdPoint[n];
+        Integer[] data = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            coords[i * 2] = r.nextDouble() * 10000;
+            coords[i * 2 + 1] = r.nextDouble() * 10000;
+            pts[i] = new kdPoint(coords[i * 2], coords[i * 2 + 1]);
+            data[i] = i;
+        }
+        double[] qx = new double[queries], qy = new double[queries];
+        for (int i = 0; i < queries; i++) {
+            qx[i] = r.nextDouble() * 10000;
+            qy[i] = r.nextDouble() * 10000;
+        }
+        long mem = used();
+        long time = System.nanoTime();
+        kdFlatTree flat = new kdFlatTree(coords, 2);
+        long flatBuild = System.nanoTime() - time;
+        long flatMem = used() - mem;
+        mem = used();
+        time = System.nanoTime();
+        kdTree<Integer> tree = new kdTree<Integer>(pts, data);
+        long treeBuild = System.nanoTime() - time;
+        long treeMem = used() - mem;
+        kdFlatTree.Nearest fres = new kdFlatTree.Nearest();
+        kdTree.Nearest<Integer> tres = new kdTree.Nearest<Integer>();
+        double diff = 0;
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < queries; i++) {
+                flat.nearest(qx[i], qy[i], fres);
+                tree.nearest(qx[i], qy[i], tres);
+                diff += Math.abs(fres.distance - tres.distance);
+            }
+        }
+        if (diff > 1e-6) System.out.println("MISMATCH between kdFlatTree and kdTree");
+        double sum = 0;
+        time = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            flat.nearest(qx[i], qy[i], fres);
+            sum += fres.distance;
+        }
+        long flatTime = System.nanoTime() - time;
+        time = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            tree.nearest(qx[i], qy[i], tres);
+            sum -= tres.distance;
+        }
+        long treeTime = System.nanoTime() - time;
+        if (Math.abs(sum) > 1e-6) System.out.println("MISMATCH between kdFlatTree and kdTree");
+        //keep the inputs reachable so collecting them doesn't skew the heap
+        //figures, which are only meant to count the trees
+        if (coords.length != pts.length * 2 || data.length != n) return;
+        System.out.printf("kdFlatTree n=%d: build %.1f ms, %.1f bytes/entry, %.1f ns/query%n", n, flatBuild / 1e6, (double) flatMem / n, (double) flatTime / queries);
+        System.out.printf("kdTree     n=%d: build %.1f ms, %.1f bytes/entry, %.1f ns/query%n", n, treeBuild / 1e6, (double) treeMem / n, (double) treeTime / queries);
+    }
+
+    /**
+     * @return The depth of the deepest node, found without recursion
+     */
+    private static int depth(kdTree.TreeNode<?> root) {
+        if (root == null) return 0;
+        ArrayDeque<kdTree.TreeNode<?>> nodes = new ArrayDeque<kdTree.TreeNode<?>>();
+        ArrayDeque<Integer> depths = new ArrayDeque<Integer>();
+        nodes.push(root);
+        depths.push(1);
+        int max = 0;
+        while (!nodes.isEmpty()) {
+            kdTree.TreeNode<?> n = nodes.pop();
+            int d = depths.pop();
+            max = Math.max(max, d);
+            if (n.left != null) {
+                nodes.push(n.left);
+                depths.push(d + 1);
+            }
+            if (n.right != null) {
+                nodes.push(n.right);
+                depths.push(d + 1);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Builds trees of objects that all lie on one vertical line, like a column
+     * of a grid layout, and checks they stay balanced and searchable
+     */
+    private static void collinear(int n, int queries) {
+        Random r = new Random(3);
+        kdPoint[] pts = new kdPoint[n];
+        Integer[] data = new Integer[n];
+        double[] coords = new double[n * 2];
+        for (int i = 0; i < n; i++) {
+            //every x equal, and every y shared by ten objects
+            coords[i * 2] = 500;
+            coords[i * 2 + 1] = (i % (n / 10)) * 10;
+            pts[i] = new kdPoint(coords[i * 2], coords[i * 2 + 1]);
+            data[i] = i;
+        }
+        long time = System.nanoTime();
+        kdTree<Integer> tree = new kdTree<Integer>(pts, data);
+        long build = System.nanoTime() - time;
+        time = System.nanoTime();
+        kdFlatTree flat = new kdFlatTree(coords, 2);
+        long flatBuild = System.nanoTime() - time;
+        double[] qx = new double[queries], qy = new double[queries];
+        for (int i = 0; i < queries; i++) {
+            qx[i] = i % 2 == 0 ? 500 : r.nextDouble() * 1000;
+            qy[i] = r.nextDouble() * n;
+        }
+        kdTree.Nearest<Integer> res = new kdTree.Nearest<Integer>();
+        kdFlatTree.Nearest fres = new kdFlatTree.Nearest();
+        int bad = 0;
+        //brute force a few, the points are on a line so this is easy
+        for (int i = 0; i < 100; i++) {
+            double dy = qy[i] - Math.max(0, Math.min((n / 10 - 1) * 10, Math.round(qy[i] / 10) * 10));
+            double best = Math.sqrt((qx[i] - 500) * (qx[i] - 500) + dy * dy);
+            tree.nearest(qx[i], qy[i], res);
+            flat.nearest(qx[i], qy[i], fres);
+            if (Math.abs(res.distance - best) > 1e-6 || Math.abs(fres.distance - best) > 1e-6) bad++;
+            if (Math.abs(tree.nnSearch(1, qx[i], qy[i]).firstKey() - best) > 1e-6) bad++;
+        }
+        double sum = 0;
+        time = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            tree.nearest(qx[i], qy[i], res);
+            sum += res.distance;
+        }
+        long nearest = System.nanoTime() - time;
+        time = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            flat.nearest(qx[i], qy[i], fres);
+            sum -= fres.distance;
+        }
+        long flatNearest = System.nanoTime() - time;
+        time = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < queries; i++) {
+            found += tree.rangeSearch(25, qx[i], qy[i]).size();
+        }
+        long range = System.nanoTime() - time;
+        if (Math.abs(sum) > 1e-6 * queries) bad++;
+        System.out.printf("collinear n=%d: kdTree depth %d (log2 n = %.1f), build %.1f ms, nearest %.1f ns/query, rangeSearch %.1f ns/query (%d hits)%n", n, depth(tree.getTreeRoot()), Math.log(n) / Math.log(2), build / 1e6, (double) nearest / queries, (double) range / queries, found);
+        System.out.printf("collinear n=%d: kdFlatTree build %.1f ms, nearest %.1f ns/query%n", n, flatBuild / 1e6, (double) flatNearest / queries);
+        if (bad > 0) System.out.println("FAIL: " + bad + " wrong answers on collinear input");
+    }
+
+    /**
+     * Times rubber band style rectangle queries of kdFlatTree against a scan
+     * of every point, checking both find the same number of points
+     */
+    private static void rect(int n, int queries) {
+        Random r = new Random(4);
+        double[] coords = new double[n * 2];
+        for (int i = 0; i < coords.length; i++) {
+            coords[i] = r.nextDouble() * 10000;
+        }
+        kdFlatTree flat = new kdFlatTree(coords, 2);
+        double[] qx = new double[queries], qy = new double[queries];
+        for (int i = 0; i < queries; i++) {
+            qx[i] = r.nextDouble() * 9800;
+            qy[i] = r.nextDouble() * 9800;
+        }
+        final int[] count = new int[1];
+        kdFlatTree.Visitor v = new kdFlatTree.Visitor() {
+            public void visit(int payload) {
+                count[0]++;
+            }
+        };
+        long time = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            flat.rect(qx[i], qy[i], qx[i] + 200, qy[i] + 200, v);
+        }
+        time = System.nanoTime() - time;
+        int found = count[0];
+        long scan = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            for (int j = 0; j < n; j++) {
+                double x = coords[j * 2], y = coords[j * 2 + 1];
+                if (x >= qx[i] && x <= qx[i] + 200 && y >= qy[i] && y <= qy[i] + 200) count[0]--;
+            }
+        }
+        scan = System.nanoTime() - scan;
+        System.out.printf("rect      n=%d: %.1f us/query, scanning %.1f us/query (%.1f hits)%n", n, time / 1e3 / queries, scan / 1e3 / queries, (double) found / queries);
+        if (count[0] != 0) System.out.println("MISMATCH between rect and scanning");
+    }
+
+    /**
+     * Times a Cursor against plain `nearest` on queries that walk in steps of
+     * 3, the way traceBeam steps along a beam
+     */
+    private static void cursor(int n, int queries) {
+        Random r = new Random(5);
+        kdTree<Integer> tree = random(n, r);
+        double[] qx = new double[queries], qy = new double[queries];
+        double x = 0, y = 0, angle = 0;
+        for (int i = 0; i < queries; i++) {
+            //a new beam every 1000 steps
+            if (i % 1000 == 0) {
+                x = r.nextDouble() * 10000;
+                y = r.nextDouble() * 10000;
+                angle = r.nextDouble() * 2 * Math.PI;
+            }
+            x += 3 * Math.cos(angle);
+            y += 3 * Math.sin(angle);
+            qx[i] = x;
+            qy[i] = y;
+        }
+        kdTree.Nearest<Integer> res = new kdTree.Nearest<Integer>();
+        kdTree.Cursor<Integer> cursor = tree.cursor();
+        double sum = 0;
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < queries; i++) {
+                tree.nearest(qx[i], qy[i], res);
+                cursor.nearest(qx[i], qy[i]);
+                sum += res.distance - cursor.distance;
+            }
+        }
+        long time = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            tree.nearest(qx[i], qy[i], res);
+            sum += res.distance;
+        }
+        time = System.nanoTime() - time;
+        long cursorTime = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            cursor.nearest(qx[i], qy[i]);
+            sum -= cursor.distance;
+        }
+        cursorTime = System.nanoTime() - cursorTime;
+        System.out.printf("coherent  n=%d: nearest %.1f ns/query, Cursor %.1f ns/query%n", n, (double) time / queries, (double) cursorTime / queries);
+        if (Math.abs(sum) > 1e-6 * queries) System.out.println("MISMATCH between Cursor and nearest");
+    }
+
+    /**
+     * Times the batch k nearest search against one nnSearch per query
+     */
+    private static void batch(int n, int queries, int k) {
+        Random r = new Random(6);
+        kdTree<Integer> tree = random(n, r);
+        double[] q = new double[queries * 2];
+        for (int i = 0; i < q.length; i++) {
+            q[i] = r.nextDouble() * 10000;
+        }
+        Integer[] data = new Integer[queries * k];
+        double[] distances = new double[queries * k];
+        double sum = 0;
+        for (int round = 0; round < 3; round++) {
+            tree.nearest(q, k, data, distances);
+            for (int i = 0; i < queries; i++) {
+                sum += tree.nnSearch(k, q[i * 2], q[i * 2 + 1]).lastKey() - distances[i * k + k - 1];
+            }
+        }
+        long bytes = allocated();
+        long time = System.nanoTime();
+        tree.nearest(q, k, data, distances);
+        time = System.nanoTime() - time;
+        bytes = bytes < 0 ? -1 : allocated() - bytes;
+        long single = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            sum += tree.nnSearch(k, q[i * 2], q[i * 2 + 1]).lastKey() - distances[i * k + k - 1];
+        }
+        single = System.nanoTime() - single;
+        System.out.printf("batch     n=%d k=%d: %.1f ns/query on %d processors (%s bytes in the calling thread), nnSearch %.1f ns/query%n", n, k, (double) time / queries, Runtime.getRuntime().availableProcessors(), bytes < 0 ? "?" : String.valueOf(bytes), (double) single / queries);
+        if (Math.abs(sum) > 1e-6 * queries) System.out.println("MISMATCH between batch and nnSearch");
+    }
+
+    public static void main(String[] args) {
+        nearest(100000, 1000000);
+        flat(100000, 1000000);
+        flat(1000000, 1000000);
+        collinear(100000, 100000);
+        rect(1000000, 1000);
+        cursor(100000, 1000000);
+        batch(100000, 100000, 8);
+    }
+
+}
@@ -22,18 +22,48 @@ package lasers.kdimensional;
 import java.util.*;
 import java.awt.*;
 import java.awt.geom.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
 import static java.lang.Math.*;
 
 /**
  * An arbitrarty dimensional sorted tree. The 1D version functions the same as a
  * binary tree. E.G., this class abstracts a binary tree to higher dimensions.
  *
+ * Entries can be inserted, deleted and moved after construction. The tree is
+ * kept balanced scapegoat style: an insert that ends up too deep rebuilds the
+ * smallest unbalanced subtree above it, and deletes only mark the node as
+ * dead (it still splits space for searches) until half the tree is dead and
+ * the whole tree is rebuilt. Both cost O(log n) amortized.
+ *
+ * Range and nearest neighbor searches walk the tree with an explicit stack
+ * rather than recursion, so not even a badly unbalanced tree can overflow the
+ * thread's stack.
+ *
  * @author Benjamin J. Land
  */
 public class kdTree<T> {
 
+    //Balance factor, no subtree may hold more than ALPHA of its parent's nodes
+    private static final double ALPHA = 0.7;
+    //Builds of at least this many entries fork their subtrees in parallel
+    static final int PARALLEL = 8192;
+    //Batch queries are split into pieces of at most this many queries
+    static final int BATCH = 256;
+    //Shared by all trees, created by the first large build or batch
+    private static ForkJoinPool pool;
+
     private TreeNode<T> root;
-    private final int dimension;
+    private int dimension;
+    //Number of nodes, dead ones included, and of dead nodes
+    private int nodes, dead;
+    //Counts changes to the tree, so Cursors know when their paths are stale
+    private int mods;
+    //Set when the tree is handed to another owner, see `share`
+    private volatile boolean shared;
 
     public kdTree(kdPoint[] points, T[] data) {
         if (points.length != data.length)
@@ -43,7 +73,8 @@ public class kdTree<T> {
             res[i] = new Entry(new kdPoint(points[i]),data[i]);
         }
         dimension = (points.length > 0) ? points[0].dimension() : 0;
-        root = dimension > 0 ? tree(res, 0, points.length - 1, 0) : null;
+        root = dimension > 0 ? tree(res, 0, points.length - 1) : null;
+        nodes = root == null ? 0 : points.length;
     }
 
     public kdTree(Point[] points, T[] data) {
@@ -54,7 +85,8 @@ public class kdTree<T> {
             res[i] = new Entry(new kdPoint(points[i]),data[i]);
         }
         dimension = 2;
-        root = tree(res, 0, points.length - 1, 0);
+        root = points.length > 0 ? tree(res, 0, points.length - 1) : null;
+        nodes = points.length;
     }
 
     public kdTree(Point2D[] points, T[] data) {
@@ -65,7 +97,8 @@ public class kdTree<T> {
             res[i] = new Entry(new kdPoint(points[i]),data[i]);
         }
         dimension = 2;
-        root = tree(res, 0, points.length - 1, 0);
+        root = points.length > 0 ? tree(res, 0, points.length - 1) : null;
+        nodes = points.length;
     }
 
     public kdTree(kdPoint[] points) {
@@ -74,7 +107,8 @@ public class kdTree<T> {
             res[i] = new Entry(new kdPoint(points[i]),null);
         }
         dimension = (points.length > 0) ? points[0].dimension() : 0;
-        root = dimension > 0 ? tree(res, 0, points.length - 1, 0) : null;
+        root = dimension > 0 ? tree(res, 0, points.length - 1) : null;
+        nodes = root == null ? 0 : points.length;
     }
 
     public kdTree(Point[] points) {
@@ -83,7 +117,8 @@ public class kdTree<T> {
             res[i] = new Entry(new kdPoint(points[i]),null);
         }
         dimension = 2;
-        root = tree(res, 0, points.length - 1, 0);
+        root = points.length > 0 ? tree(res, 0, points.length - 1) : null;
+        nodes = points.length;
     }
 
     public kdTree(Point2D[] points) {
@@ -92,7 +127,8 @@ public class kdTree<T> {
             res[i] = new Entry(new kdPoint(points[i]),null);
         }
         dimension = 2;
-        root = tree(res, 0, points.length - 1, 0);
+        root = points.length > 0 ? tree(res, 0, points.length - 1) : null;
+        nodes = points.length;
     }
 
     private static class nnSearchData<T> {
@@ -123,14 +159,132 @@ public class kdTree<T> {
         }
     }
 
+    /**
+     * Reusable result of `nearest`, so a query allocates nothing
+     */
+    public static class Nearest<T> {
+        //the nearest entry's data, or null if the tree was empty
+        public T data;
+        //distance to the nearest entry
+        public double distance;
+        //squared distance while searching
+        private double best;
+        //position of the nearest entry
+        private double x, y;
+        private boolean found;
+
+        public boolean found() {
+            return found;
+        }
+    }
+
+    /**
+     * A nearest search for runs of queries close to each other, like the
+     * steps along a beam or the mouse moving. The cursor keeps the path the
+     * last query took down the tree, with the box of space each node on it
+     * covers. The next query starts from the deepest of those nodes whose box
+     * holds every point nearer than the last result, rather than the root.
+     *
+     * A Cursor belongs to one tree and one thread. Any change to the tree
+     * makes the next query start from the root again.
+     */
+    public static class Cursor<T> extends Nearest<T> {
+        private final kdTree<T> tree;
+        //`mods` of the tree when the path was recorded
+        private int mods;
+        //the path, and the box of each node on it as (minx, miny, maxx, maxy)
+        private TreeNode<T>[] path = kdTree.<T>nodes(32);
+        private double[] box = new double[32 * 4];
+        private int size;
+
+        private Cursor(kdTree<T> tree) {
+            this.tree = tree;
+        }
+
+        /**
+         * @return The tree this cursor searches
+         */
+        public kdTree<T> getTree() {
+            return tree;
+        }
+
+        /**
+         * Finds the entry nearest to a point, like kdTree.nearest
+         * @param x X of the point
+         * @param y Y of the point
+         * @return True if the tree had any entry
+         */
+        public boolean nearest(double x, double y) {
+            return tree.nearest(this, x, y);
+        }
+    }
+
+    /**
+     * The nodes a search has walked down through but not finished, used
+     * instead of recursion. Like the old recursive searches it descends to a
+     * leaf first and looks at nodes on the way back up, so the nearest
+     * candidates are found early and prune the most.
+     */
+    private class Path {
+        TreeNode<T>[] nodes = kdTree.<T>nodes(32);
+        int size;
+
+        /**
+         * Pushes `n` and the nodes below it on the side of `s`, down to a leaf
+         */
+        void descend(TreeNode<T> n, kdPoint s) {
+            while (n != null) {
+                if (size == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, size * 2);
+                }
+                nodes[size++] = n;
+                n = s.mag[n.dim] <= n.data.point.mag[n.dim] ? n.left : n.right;
+            }
+        }
+
+        /**
+         * Pushes `n` alone, if it isn't null
+         */
+        void push(TreeNode<T> n) {
+            if (n == null) return;
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+            }
+            nodes[size++] = n;
+        }
+    }
+
+    /**
+     * Receives the results of `range` and `rect`
+     */
+    public interface Visitor<T> {
+        /**
+         * @param point Position of the entry, which must not be modified
+         * @param data Data of the entry
+         */
+        void visit(kdPoint point, T data);
+    }
+
+    /**
+     * @return An array for `n` nodes, which Java cannot create generically
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> TreeNode<T>[] nodes(int n) {
+        return (TreeNode<T>[]) new TreeNode<?>[n];
+    }
+
     public static class TreeNode<T> {
         //for fast back propogation
         public TreeNode<T> parent = null;
+        //deleted entries stay in the tree as splitting nodes until a rebuild
+        public boolean deleted = false;
         //the entry at this node
         public Entry<T> data = null;
+        //the dimension this node splits space in
+        public int dim = 0;
         //left is the lesser or equal side of the tree
         public TreeNode<T> left = null;
-        //right is the greater side of the tree
+        //right is the greater or equal side of the tree
         public TreeNode<T> right = null;
     }
 
@@ -142,150 +296,705 @@ public class kdTree<T> {
         return root;
     }
 
-    public TreeMap<Double, Entry<T>> rangeSearch(double r, kdPoint pt) {
-        if (pt.dimension() != dimension) throw new RuntimeException("Dimensions of Point does not equal dimension of Tree");
-        rangeSearchData d = new rangeSearchData();
-        d.range = r;
-        rangeSearch(d, root, null, pt, 0);
-        return d.map;
+    /**
+     * @return The number of (live) entries in the tree
+     */
+    public int size() {
+        return nodes - dead;
     }
 
-    public TreeMap<Double, Entry<T>> rangeSearch(double r, double... mag) {
-        return rangeSearch(r,new kdPoint(mag));
+    /**
+     * Marks the tree as shared between owners (e.g. a World and its forks).
+     * Nothing enforces it, but a shared tree should no longer be modified;
+     * owners build a new tree instead.
+     */
+    public void share() {
+        shared = true;
+    }
+
+    public boolean isShared() {
+        return shared;
     }
 
-    private void rangePropUp(rangeSearchData<T> data, TreeNode<T> n, TreeNode<T> top, kdPoint s, int depth) {
-        if (n == top) return;
-        double dist = s.dist(n.data.point);
-        if (dist <= data.range) {
-            data.map.put(dist, new Entry(n.data));
+    /**
+     * Adds an entry to the tree, rebuilding the smallest subtree around it
+     * that became unbalanced, if any
+     * @param pt Position of the entry
+     * @param data Data of the entry
+     */
+    public void insert(kdPoint pt, T data) {
+        if (root == null) {
+            if (dimension == 0) dimension = pt.dimension();
         }
-        int dim = depth % dimension;
-        if (abs(n.data.point.mag[dim] - s.mag[dim]) <= data.range) {
-            if (s.mag[dim] <= n.data.point.mag[dim]) {
-                if (n.right != null) {
-                    rangeSearch(data, n.right, n, s, depth + 1);
+        if (pt.dimension() != dimension) throw new RuntimeException("Dimensions of Point does not equal dimension of Tree");
+        TreeNode<T> node = new TreeNode<T>();
+        node.data = new Entry<T>(pt, data);
+        nodes++;
+        mods++;
+        if (root == null) {
+            root = node;
+            return;
+        }
+        TreeNode<T> n = root;
+        int depth = 0;
+        while (true) {
+            depth++;
+            if (compare(pt, n.data.point, n.dim) <= 0) {
+                if (n.left == null) {
+                    n.left = node;
+                    break;
                 }
+                n = n.left;
             } else {
-                if (n.left != null) {
-                    rangeSearch(data, n.left, n, s, depth + 1);
+                if (n.right == null) {
+                    n.right = node;
+                    break;
+                }
+                n = n.right;
+            }
+        }
+        node.parent = n;
+        node.dim = (n.dim + 1) % dimension;
+        if (depth > Math.log(nodes) / Math.log(1 / ALPHA) + 1) {
+            //walk up to the scapegoat, the lowest ancestor out of balance
+            TreeNode<T> child = node;
+            int childSize = 1;
+            while (child.parent != null) {
+                TreeNode<T> parent = child.parent;
+                TreeNode<T> sibling = parent.left == child ? parent.right : parent.left;
+                int size = childSize + count(sibling) + 1;
+                if (childSize > ALPHA * size) {
+                    rebuild(parent, size);
+                    return;
                 }
+                child = parent;
+                childSize = size;
+            }
+        }
+    }
+
+    /**
+     * Removes an entry from the tree
+     * @param pt Position the entry was inserted (or last moved) at
+     * @param data Data of the entry
+     * @return False if no such entry is in the tree
+     */
+    public boolean delete(kdPoint pt, T data) {
+        if (pt.dimension() != dimension) throw new RuntimeException("Dimensions of Point does not equal dimension of Tree");
+        TreeNode<T> n = find(root, pt, data);
+        if (n == null) return false;
+        n.deleted = true;
+        dead++;
+        mods++;
+        if (dead * 2 > nodes) {
+            rebuild(root, nodes);
+        }
+        return true;
+    }
+
+    /**
+     * Finds the live node holding an entry. Points identical to a node's
+     * normally lie to its left, but a build can leave some on the right, so
+     * both sides are tried on a tie.
+     */
+    private TreeNode<T> find(TreeNode<T> n, kdPoint pt, T data) {
+        while (n != null) {
+            if (!n.deleted && (data == null ? n.data.data == null : data.equals(n.data.data)) && n.data.point.equals(pt)) return n;
+            int c = compare(pt, n.data.point, n.dim);
+            if (c == 0) {
+                TreeNode<T> res = find(n.left, pt, data);
+                if (res != null) return res;
+                n = n.right;
+            } else {
+                n = c < 0 ? n.left : n.right;
             }
         }
-        rangePropUp(data, n.parent, top, s, depth - 1);
+        return null;
     }
 
-    private void rangeSearch(rangeSearchData data, TreeNode<T> n, TreeNode<T> top, kdPoint s, int depth) {
-        int dim = depth % dimension;
-        if (n.left != null && s.mag[dim] <= n.data.point.mag[dim]) {
-            rangeSearch(data, n.left, top, s, depth + 1);
-        } else if (n.right != null && s.mag[dim] > n.data.point.mag[dim]) {
-            rangeSearch(data, n.right, top, s, depth + 1);
+    /**
+     * Moves an entry to a new position
+     * @param from Position the entry is at
+     * @param to Position to move it to
+     * @param data Data of the entry
+     * @return False if no such entry is in the tree
+     */
+    public boolean move(kdPoint from, kdPoint to, T data) {
+        if (!delete(from, data)) return false;
+        insert(to, data);
+        return true;
+    }
+
+    private int count(TreeNode<T> n) {
+        if (n == null) return 0;
+        return count(n.left) + count(n.right) + 1;
+    }
+
+    private int collect(TreeNode<T> n, Entry<T>[] into, int i) {
+        if (n == null) return i;
+        i = collect(n.left, into, i);
+        if (!n.deleted) into[i++] = n.data;
+        return collect(n.right, into, i);
+    }
+
+    /**
+     * Rebuilds a subtree from its live entries, dropping the dead ones
+     * @param n Root of the subtree
+     * @param size Number of nodes in the subtree
+     */
+    private void rebuild(TreeNode<T> n, int size) {
+        Entry<T>[] live = new Entry[size];
+        int count = collect(n, live, 0);
+        TreeNode<T> parent = n.parent;
+        TreeNode<T> sub = count > 0 ? tree(live, 0, count - 1) : null;
+        nodes -= size - count;
+        dead -= size - count;
+        if (sub != null) sub.parent = parent;
+        if (parent == null) {
+            root = sub;
+        } else if (parent.left == n) {
+            parent.left = sub;
         } else {
-            rangePropUp(data, n, top, s, depth);
+            parent.right = sub;
         }
     }
 
+    /**
+     * Entries at the same distance overwrite each other in the map, so this
+     * can lose results; `range` with a Visitor never does.
+     */
+    public TreeMap<Double, Entry<T>> rangeSearch(double r, final kdPoint pt) {
+        final rangeSearchData<T> data = new rangeSearchData<T>();
+        data.range = r;
+        range(r, pt, new Visitor<T>() {
+            public void visit(kdPoint point, T obj) {
+                data.map.put(pt.dist(point), new Entry<T>(point, obj));
+            }
+        });
+        return data.map;
+    }
+
+    /**
+     * Calls `v` once for every entry within a distance of a point. Nothing
+     * is allocated per result.
+     * @param r The distance
+     * @param pt The point
+     * @param v Receives the entries, in no particular order
+     */
+    public void range(double r, kdPoint pt, Visitor<T> v) {
+        if (pt.dimension() != dimension && root != null) throw new RuntimeException("Dimensions of Point does not equal dimension of Tree");
+        double rr = r * r;
+        Path path = new Path();
+        path.descend(root, pt);
+        while (path.size > 0) {
+            TreeNode<T> n = path.nodes[--path.size];
+            double[] p = n.data.point.mag;
+            if (!n.deleted) {
+                double d = 0;
+                for (int i = 0; i < dimension; i++) {
+                    double c = p[i] - pt.mag[i];
+                    d += c*c;
+                }
+                if (d <= rr) v.visit(n.data.point, n.data.data);
+            }
+            double diff = pt.mag[n.dim] - p[n.dim];
+            if (abs(diff) <= r) {
+                path.descend(diff <= 0 ? n.right : n.left, pt);
+            }
+        }
+    }
+
+    /**
+     * Calls `v` once for every entry inside an axis aligned box, bounds
+     * included. Nothing is allocated per result.
+     * @param min The least corner of the box
+     * @param max The greatest corner of the box
+     * @param v Receives the entries, in no particular order
+     */
+    public void rect(kdPoint min, kdPoint max, Visitor<T> v) {
+        if ((min.dimension() != dimension || max.dimension() != dimension) && root != null) throw new RuntimeException("Dimensions of Point does not equal dimension of Tree");
+        Path path = new Path();
+        path.push(root);
+        while (path.size > 0) {
+            TreeNode<T> n = path.nodes[--path.size];
+            double[] p = n.data.point.mag;
+            if (!n.deleted) {
+                boolean inside = true;
+                for (int i = 0; i < dimension && inside; i++) {
+                    inside = p[i] >= min.mag[i] && p[i] <= max.mag[i];
+                }
+                if (inside) v.visit(n.data.point, n.data.data);
+            }
+            //equal values may lie on either side of a node
+            if (min.mag[n.dim] <= p[n.dim]) path.push(n.left);
+            if (max.mag[n.dim] >= p[n.dim]) path.push(n.right);
+        }
+    }
+
+    /**
+     * Calls `v` once for every entry of a 2D tree inside a rectangle, bounds
+     * included
+     */
+    public void rect(double x1, double y1, double x2, double y2, Visitor<T> v) {
+        rect(new kdPoint(min(x1, x2), min(y1, y2)), new kdPoint(max(x1, x2), max(y1, y2)), v);
+    }
+
+    public TreeMap<Double, Entry<T>> rangeSearch(double r, double... mag) {
+        return rangeSearch(r,new kdPoint(mag));
+    }
+
+    /**
+     * Finds the single entry nearest to a point of a 2D tree. Unlike
+     * `nnSearch(1, ...)` this allocates nothing: no map, no entry copies and
+     * no boxed distances, and the result goes into a caller supplied holder.
+     * @param x X of the point
+     * @param y Y of the point
+     * @param res Receives the nearest entry and its distance
+     * @return True if the tree had any entry
+     */
+    public boolean nearest(double x, double y, Nearest<T> res) {
+        if (dimension != 2 && root != null) throw new RuntimeException("Dimensions of Point does not equal dimension of Tree");
+        res.data = null;
+        res.found = false;
+        res.best = Double.POSITIVE_INFINITY;
+        if (root != null) nearest(root, x, y, res);
+        res.distance = res.found ? sqrt(res.best) : Double.POSITIVE_INFINITY;
+        return res.found;
+    }
+
+    /**
+     * Unlike the other searches this one recurses: it is the hot path of
+     * tracing beams, and on HotSpot the recursion is about twice as fast as
+     * the same walk with an explicit stack. The depth is bounded anyway,
+     * builds are balanced and inserts rebuild any subtree deeper than
+     * log(n)/log(1/ALPHA).
+     */
+    private void nearest(TreeNode<T> n, double x, double y, Nearest<T> res) {
+        double[] p = n.data.point.mag;
+        if (!n.deleted) {
+            double dx = p[0] - x, dy = p[1] - y;
+            double d = dx*dx + dy*dy;
+            if (d < res.best) {
+                res.best = d;
+                res.data = n.data.data;
+                res.x = p[0];
+                res.y = p[1];
+                res.found = true;
+            }
+        }
+        double diff = (n.dim == 0 ? x : y) - p[n.dim];
+        TreeNode<T> near = diff <= 0 ? n.left : n.right;
+        TreeNode<T> far = diff <= 0 ? n.right : n.left;
+        if (near != null) nearest(near, x, y, res);
+        if (far != null && diff*diff < res.best) nearest(far, x, y, res);
+    }
+
+    /**
+     * @return A new Cursor over this tree, for the calling thread only
+     */
+    public Cursor<T> cursor() {
+        return new Cursor<T>(this);
+    }
+
+    private boolean nearest(Cursor<T> c, double x, double y) {
+        if (dimension != 2 && root != null) throw new RuntimeException("Dimensions of Point does not equal dimension of Tree");
+        //the result fields are private to Nearest
+        Nearest<T> res = c;
+        int level = 0;
+        if (c.mods != mods || c.size == 0 || !res.found) {
+            c.mods = mods;
+            c.size = 0;
+            res.found = false;
+            res.best = Double.POSITIVE_INFINITY;
+            if (root == null) {
+                c.data = null;
+                c.distance = Double.POSITIVE_INFINITY;
+                return false;
+            }
+            c.path[0] = root;
+            c.box[0] = c.box[1] = Double.NEGATIVE_INFINITY;
+            c.box[2] = c.box[3] = Double.POSITIVE_INFINITY;
+            c.size = 1;
+        } else {
+            //the last result is still in the tree, so the nearest entry is no
+            //further than it; find the deepest box holding that whole circle
+            double dx = res.x - x, dy = res.y - y;
+            res.best = dx*dx + dy*dy;
+            //the bottom of the last path is usually nearer still, and the
+            //smaller the circle, the deeper the search can start
+            for (int i = c.size - 1; i >= 0 && i >= c.size - 4; i--) {
+                TreeNode<T> n = c.path[i];
+                if (n.deleted) continue;
+                double[] p = n.data.point.mag;
+                dx = p[0] - x;
+                dy = p[1] - y;
+                double d = dx*dx + dy*dy;
+                if (d < res.best) {
+                    res.best = d;
+                    res.data = n.data.data;
+                    res.x = p[0];
+                    res.y = p[1];
+                }
+            }
+            double r = sqrt(res.best);
+            level = c.size - 1;
+            while (level > 0) {
+                double[] b = c.box;
+                int i = level * 4;
+                if (x - r > b[i] && y - r > b[i + 1] && x + r < b[i + 2] && y + r < b[i + 3]) break;
+                level--;
+            }
+        }
+        TreeNode<T> n = c.path[level];
+        nearest(n, x, y, res);
+        c.distance = res.found ? sqrt(res.best) : Double.POSITIVE_INFINITY;
+        //record the path on to where this point would be inserted
+        c.size = level + 1;
+        boolean rebuilt = false;
+        while (true) {
+            double[] p = n.data.point.mag;
+            boolean left = (n.dim == 0 ? x : y) <= p[n.dim];
+            TreeNode<T> next = left ? n.left : n.right;
+            if (next == null) break;
+            if (c.size == c.path.length) {
+                c.path = Arrays.copyOf(c.path, c.size * 2);
+                c.box = Arrays.copyOf(c.box, c.size * 8);
+            }
+            //the path usually only changes near the leaf, so levels that are
+            //the same as last time are left alone
+            if (c.path[c.size] != next || rebuilt) {
+                int from = (c.size - 1) * 4, to = c.size * 4;
+                System.arraycopy(c.box, from, c.box, to, 4);
+                //left keeps the lesser side of the split, right the greater
+                c.box[to + (left ? 2 : 0) + n.dim] = p[n.dim];
+                c.path[c.size] = next;
+                rebuilt = true;
+            }
+            c.size++;
+            n = next;
+        }
+        return res.found;
+    }
+
     public TreeMap<Double, Entry<T>> nnSearch(int n, kdPoint pt) {
         if (pt.dimension() != dimension) throw new RuntimeException("Dimensions of Point does not equal dimension of Tree");
-        nnSearchData d = new nnSearchData();
-        d.n = n;
-        nnSearch(d, root, null, pt, 0);
-        return d.map;
+        nnSearchData<T> data = new nnSearchData<T>();
+        data.n = n;
+        Path path = new Path();
+        if (n > 0) path.descend(root, pt);
+        while (path.size > 0) {
+            path.size--;
+            TreeNode<T> node = path.nodes[path.size];
+            if (!node.deleted) {
+                double dist = pt.dist(node.data.point);
+                if (data.map.size() < n || dist < data.maxDist) {
+                    data.map.put(dist, new Entry<T>(node.data));
+                    if (data.map.size() > n) data.map.remove(data.map.lastKey());
+                    data.maxDist = data.map.lastKey();
+                }
+            }
+            double diff = pt.mag[node.dim] - node.data.point.mag[node.dim];
+            if (data.map.size() < n || abs(diff) < data.maxDist) {
+                path.descend(diff <= 0 ? node.right : node.left, pt);
+            }
+        }
+        return data.map;
     }
 
     public TreeMap<Double, Entry<T>> nnSearch(int n, double... mag) {
         return nnSearch(n,new kdPoint(mag));
     }
 
-    private void nnPropUp(nnSearchData<T> data, TreeNode<T> n, TreeNode<T> top, kdPoint s, int depth) {
-        if (n == top) return;
-        double dist = s.dist(n.data.point);
-        if (data.map.size() < data.n) {
-            data.map.put(dist, new Entry(n.data));
-            data.maxDist = max(data.maxDist, dist);
-        } else if (dist < data.maxDist) {
-            data.map.put(dist, new Entry(n.data));
-            data.map.remove(data.map.lastKey());
-            data.maxDist = data.map.lastKey();
-        }
-        int dim = depth % dimension;
-        if (data.map.size() < data.n || abs(n.data.point.mag[dim] - s.mag[dim]) < data.maxDist) {
-            if (s.mag[dim] <= n.data.point.mag[dim]) {
-                if (n.right != null) {
-                    nnSearch(data, n.right, n, s, depth + 1);
-                }
+    /**
+     * Finds the `k` nearest entries to each of many points at once. Results
+     * go into caller supplied arrays, nearest first: the neighbours of query
+     * `q` are data[q*k .. q*k+k-1] with their distances at the same indexes in
+     * `distances`, padded with null and infinity when the tree has fewer than
+     * `k` entries. Nothing is allocated per query, and batches of more than
+     * 2*BATCH queries are split across the fork/join pool. The tree must not
+     * change until this returns.
+     * @param queries Packed coordinates of the points, `dimension` per point
+     * @param k Number of neighbours to find per point
+     * @param data Receives the data of the neighbours
+     * @param distances Receives the distances of the neighbours
+     */
+    public void nearest(double[] queries, int k, T[] data, double[] distances) {
+        if (dimension == 0 || queries.length % dimension != 0) throw new RuntimeException("Dimensions of Point does not equal dimension of Tree");
+        int count = queries.length / dimension;
+        if (data.length < count * k || distances.length < count * k) throw new RuntimeException("Array size mismatch");
+        if (count > 2 * BATCH && !ForkJoinTask.inForkJoinPool()) {
+            pool().invoke(new Batch(queries, k, data, distances, 0, count));
+        } else {
+            nearest(queries, k, data, distances, 0, count);
+        }
+    }
+
+    /**
+     * Answers queries [from,to) of a batch
+     */
+    private void nearest(double[] queries, int k, T[] data, double[] distances, int from, int to) {
+        for (int q = from; q < to; q++) {
+            int base = q * k;
+            //a max heap of the k best so far, the worst at `base`
+            Arrays.fill(distances, base, base + k, Double.POSITIVE_INFINITY);
+            Arrays.fill(data, base, base + k, null);
+            if (root != null && k > 0) nearest(root, queries, q * dimension, data, distances, base, k);
+            //heap sort it into nearest first
+            for (int end = k - 1; end > 0; end--) {
+                double d = distances[base];
+                T t = data[base];
+                distances[base] = distances[base + end];
+                data[base] = data[base + end];
+                distances[base + end] = d;
+                data[base + end] = t;
+                sift(data, distances, base, end);
+            }
+            for (int i = base; i < base + k; i++) {
+                distances[i] = sqrt(distances[i]);
+            }
+        }
+    }
+
+    /**
+     * The k nearest search of one batch query. Recursive for the same reason
+     * as the single nearest search.
+     */
+    private void nearest(TreeNode<T> n, double[] q, int at, T[] data, double[] distances, int base, int k) {
+        double[] p = n.data.point.mag;
+        if (!n.deleted) {
+            double d = 0;
+            for (int i = 0; i < dimension; i++) {
+                double c = p[i] - q[at + i];
+                d += c*c;
+            }
+            if (d < distances[base]) {
+                distances[base] = d;
+                data[base] = n.data.data;
+                sift(data, distances, base, k);
+            }
+        }
+        double diff = q[at + n.dim] - p[n.dim];
+        TreeNode<T> near = diff <= 0 ? n.left : n.right;
+        TreeNode<T> far = diff <= 0 ? n.right : n.left;
+        if (near != null) nearest(near, q, at, data, distances, base, k);
+        if (far != null && diff*diff < distances[base]) nearest(far, q, at, data, distances, base, k);
+    }
+
+    /**
+     * Moves the top of the max heap at `base` down to its place
+     * @param size Number of entries in the heap
+     */
+    private static <T> void sift(T[] data, double[] distances, int base, int size) {
+        int i = 0;
+        while (true) {
+            int c = i * 2 + 1;
+            if (c >= size) return;
+            if (c + 1 < size && distances[base + c + 1] > distances[base + c]) c++;
+            if (distances[base + c] <= distances[base + i]) return;
+            double d = distances[base + i];
+            T t = data[base + i];
+            distances[base + i] = distances[base + c];
+            data[base + i] = data[base + c];
+            distances[base + c] = d;
+            data[base + c] = t;
+            i = c;
+        }
+    }
+
+    /**
+     * Answers one half of a range of batch queries while the caller answers
+     * the other
+     */
+    private class Batch extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final double[] queries;
+        private final int k;
+        private final T[] data;
+        private final double[] distances;
+        private final int from, to;
+
+        Batch(double[] queries, int k, T[] data, double[] distances, int from, int to) {
+            this.queries = queries;
+            this.k = k;
+            this.data = data;
+            this.distances = distances;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH) {
+                nearest(queries, k, data, distances, from, to);
             } else {
-                if (n.left != null) {
-                    nnSearch(data, n.left, n, s, depth + 1);
-                }
+                int mid = (from + to) >>> 1;
+                Batch sub = new Batch(queries, k, data, distances, from, mid);
+                sub.fork();
+                new Batch(queries, k, data, distances, mid, to).compute();
+                sub.join();
             }
         }
-        nnPropUp(data, n.parent, top, s, depth - 1);
     }
 
-    private void nnSearch(nnSearchData data, TreeNode<T> n, TreeNode<T> top, kdPoint s, int depth) {
-        int dim = depth % dimension;
-        if (n.left != null && s.mag[dim] <= n.data.point.mag[dim]) {
-            nnSearch(data, n.left, top, s, depth + 1);
-        } else if (n.right != null && s.mag[dim] > n.data.point.mag[dim]) {
-            nnSearch(data, n.right, top, s, depth + 1);
-        } else {
-            nnPropUp(data, n, top, s, depth);
-        }
-    }
-
-    private void sortDim(Entry<T>[] sort, int left, int right, int pivot, int dim) {
-        if (right > left) {
-            Entry<T> temp = sort[pivot];
-            sort[pivot] = sort[right];
-            sort[right] = temp;
-            double mid = temp.point.mag[dim];
-            int store = left;
-            for (int i = left; i < right; i++) {
-                if (sort[i].point.mag[dim] <= mid) {
-                    temp = sort[i];
-                    sort[i] = sort[store];
-                    sort[store] = temp;
-                    store++;
+    /**
+     * Orders points by coordinate `dim`, breaking ties with the following
+     * dimensions in turn, so only identical points compare equal. Building
+     * and inserting by this order keeps objects that share a coordinate (as
+     * on a grid) apart, instead of piling them all onto one side.
+     */
+    static int compare(kdPoint a, kdPoint b, int dim) {
+        int k = a.mag.length;
+        for (int i = 0; i < k; i++) {
+            double x = a.mag[dim], y = b.mag[dim];
+            if (x < y) return -1;
+            if (x > y) return 1;
+            dim = dim + 1 == k ? 0 : dim + 1;
+        }
+        return 0;
+    }
+
+    /**
+     * @return The dimension in which the points of data[left,right] are the
+     *         most spread out
+     */
+    private int widest(Entry<T>[] data, int left, int right) {
+        int best = 0;
+        double spread = -1;
+        for (int d = 0; d < dimension; d++) {
+            double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+            for (int i = left; i <= right; i++) {
+                double v = data[i].point.mag[d];
+                if (v < min) min = v;
+                if (v > max) max = v;
+            }
+            if (max - min > spread) {
+                spread = max - min;
+                best = d;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Quickselect: moves the entry of rank `k` (in the order of `compare`) of
+     * sort[left,right] to `k`, with nothing greater before it and nothing
+     * smaller after it, in expected linear time. Partitions three ways, so
+     * runs of equal values don't make it quadratic.
+     */
+    private static <T> void select(Entry<T>[] sort, int left, int right, int k, int dim) {
+        while (right > left) {
+            //median of three random entries, fixed positions degrade to
+            //quadratic time on repeating layouts (rows of a grid)
+            ThreadLocalRandom rand = ThreadLocalRandom.current();
+            int span = right - left + 1;
+            kdPoint a = sort[left + rand.nextInt(span)].point, b = sort[left + rand.nextInt(span)].point, c = sort[left + rand.nextInt(span)].point;
+            kdPoint pivot = compare(a, b, dim) < 0 ? (compare(b, c, dim) < 0 ? b : (compare(a, c, dim) < 0 ? c : a)) : (compare(a, c, dim) < 0 ? a : (compare(b, c, dim) < 0 ? c : b));
+            int lt = left, i = left, gt = right;
+            while (i <= gt) {
+                int v = compare(sort[i].point, pivot, dim);
+                Entry<T> temp = sort[i];
+                if (v < 0) {
+                    sort[i++] = sort[lt];
+                    sort[lt++] = temp;
+                } else if (v > 0) {
+                    sort[i] = sort[gt];
+                    sort[gt--] = temp;
+                } else {
+                    i++;
                 }
             }
-            temp = sort[store];
-            sort[store] = sort[right];
-            sort[right] = temp;
-            sortDim(sort, left, store - 1, (left + store - 1) / 2, dim);
-            sortDim(sort, store + 1, right, (right + store + 1) / 2, dim);
+            if (k < lt) {
+                right = lt - 1;
+            } else if (k > gt) {
+                left = gt + 1;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The pool large builds run on, its workers are daemon threads
+     */
+    static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool();
+        }
+        return pool;
+    }
+
+    /**
+     * Builds one side of a node while the other is built by the caller
+     */
+    private class Build extends RecursiveTask<TreeNode<T>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Entry<T>[] data;
+        private final int left, right;
+
+        Build(Entry<T>[] data, int left, int right) {
+            this.data = data;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        protected TreeNode<T> compute() {
+            return tree(data, left, right);
         }
     }
 
     private TreeNode<T> tree(Entry<T>[] data) {
-        return tree(data,0,data.length-1,0);
+        return tree(data,0,data.length-1);
     }
 
-    private TreeNode<T> tree(Entry<T>[] data, int left, int right, int depth) {
+    /**
+     * Builds a balanced subtree of data[left,right] in O(n log n), splitting at
+     * the median of each range (in the order of `compare`) by selection
+     * rather than sorting, so grids of objects sharing a coordinate still
+     * split evenly. Each range is split in the dimension it spans furthest,
+     * so a row or column of objects is never split along the coordinate they
+     * all share. Subtrees of at least PARALLEL entries are built on the
+     * fork/join pool.
+     */
+    private TreeNode<T> tree(Entry<T>[] data, int left, int right) {
+        if (right - left + 1 >= PARALLEL && !ForkJoinTask.inForkJoinPool()) {
+            return pool().invoke(new Build(data, left, right));
+        }
         if (left == right) {
             TreeNode<T> t = new TreeNode<T>();
             t.data = data[left];
             return t;
         }
-        int dim =  depth % dimension;
+        int dim = widest(data, left, right);
         int mid = (left + right) / 2;
-        sortDim(data, left, right, mid, dim);
+        select(data, left, right, mid, dim);
         TreeNode<T> t = new TreeNode<T>();
+        t.dim = dim;
         if (right - left == 1) {
+            //select put the lesser one first
             t.data = data[right];
             TreeNode<T> r = new TreeNode<T>();
             t.left = r;
             t.left.data = data[left];
             t.left.parent = t;
         } else {
-            while (mid < right-1 && data[mid].point.mag[dim] >= data[mid+1].point.mag[dim]) mid++;
             t.data = data[mid];
-            t.left = tree(data, left, mid - 1, depth + 1);
+            if (mid - left >= PARALLEL && right - mid >= PARALLEL) {
+                Build sub = new Build(data, left, mid - 1);
+                sub.fork();
+                t.right = tree(data, mid + 1, right);
+                t.left = sub.join();
+            } else {
+                t.left = tree(data, left, mid - 1);
+                t.right = tree(data, mid + 1, right);
+            }
             if (t.left != null) {
                 t.left.parent = t;
             }
-            t.right = tree(data, mid + 1, right, depth + 1);
             if (t.right != null) {
                 t.right.parent = t;
             }
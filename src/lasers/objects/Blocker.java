@@ -61,6 +61,18 @@ public class Blocker extends WorldObject implements ToggleObject {
         return res;
     }
 
+    public static void write_v3(DataOutputStream out, Blocker blocker) throws IOException {
+        out.writeByte((blocker.onIsOpaque ? 1 : 0) | (blocker.opaque ? 2 : 0));
+    }
+
+    public static Blocker read_v3(DataInputStream in, World w) throws IOException {
+        Blocker res = new Blocker(w,true);
+        int bits = in.readUnsignedByte();
+        res.onIsOpaque = (bits & 1) != 0;
+        res.opaque = (bits & 2) != 0;
+        return res;
+    }
+
     public static Blocker read_legacy(DataInputStream in, World w) throws IOException {
         Blocker res = new Blocker(w,true);
         WorldObject.read_legacy(in,res);
@@ -75,8 +87,8 @@ public class Blocker extends WorldObject implements ToggleObject {
         this.opaque = !opaque;
     }
 
-    protected WorldObject impl_duplicate() {
-        Blocker b = new Blocker(world,opaque);
+    protected WorldObject impl_duplicate(World w) {
+        Blocker b = new Blocker(w,opaque);
         b.onIsOpaque = onIsOpaque;
         b.opaque = opaque;
         return b;
@@ -93,6 +105,7 @@ public class Blocker extends WorldObject implements ToggleObject {
     }
 
     public void setToggle(boolean on) {
+        boolean was = opaque;
         if (onIsOpaque) {
             if (opaque != on) world.invalidate(this);
             opaque = on;
@@ -100,6 +113,16 @@ public class Blocker extends WorldObject implements ToggleObject {
             if (opaque == on) world.invalidate(this);
             opaque = !on;
         }
+        if (opaque != was) touch();
+    }
+
+    @Override
+    public boolean isShareable() {
+        return owner == null;
+    }
+
+    public boolean getToggle() {
+        return onIsOpaque ? opaque : !opaque;
     }
 
     @Override
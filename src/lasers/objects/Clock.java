@@ -26,83 +26,25 @@ import java.awt.Graphics2D;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import javax.swing.JMenuItem;
+import javax.swing.JOptionPane;
 import lasers.Beam;
 import lasers.MethodAction;
+import lasers.TimingWheel;
 import lasers.World;
 import lasers.WorldObject;
 
 /**
- * Contains all the logic for a ticking Clock that implements ControlObject
+ * Contains all the logic for a ticking Clock that implements ControlObject.
+ * A Clock toggles every `period` ticks of its World's Engine (one tick is
+ * 250ms) and is on for `period` ticks starting at `phase` within each cycle of
+ * 2*period ticks, so Clocks with equal settings always agree.
  *
  * @author benland100
  */
-public class Clock extends WorldObject implements ControlObject {
-
-    private final static Map<World,Integer> worlds = Collections.synchronizedMap(new HashMap<World,Integer>());
-    private final static List<Clock> slow = Collections.synchronizedList(new LinkedList<Clock>());
-    private final static List<Clock> regular = Collections.synchronizedList(new LinkedList<Clock>());
-    private final static List<Clock> fast = Collections.synchronizedList(new LinkedList<Clock>());
-    private final static List<Clock> extreme = Collections.synchronizedList(new LinkedList<Clock>());
-    private final static Thread timer = new Thread("laser-clocks") {
-        @Override
-        public void run() {
-            int i = 0;
-            boolean slow_on = true, regular_on = true, fast_on = true, extreme_on = true;
-            while (true) {
-                try {
-                    Thread.sleep(250);
-                    if (i % 4 == 0){
-                        slow_on = !slow_on;
-                        synchronized (slow) {
-                            for (Clock c : slow) {
-                                c.tick(slow_on);
-                            }
-                        }
-                    }
-                    if (i % 3 == 0) {
-                        regular_on = !regular_on;
-                        synchronized (regular) {
-                            for (Clock c : regular) {
-                                c.tick(regular_on);
-                            }
-                        }
-                    }
-                    if (i % 2 == 0) {
-                        fast_on = !fast_on;
-                        synchronized (fast) {
-                            for (Clock c : fast) {
-                                c.tick(fast_on);
-                            }
-                        }
-                    }
-                    synchronized (extreme) {
-                        extreme_on = !extreme_on;
-                        for (Clock c : extreme) {
-                            c.tick(extreme_on);
-                        }
-                    }
-                    synchronized (worlds) {
-                        for (World w : worlds.keySet()) {
-                            w.rebuildBeams();
-                            w.repaint();
-                        }
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-                i++;
-            }
-        }
-    };
-    static {
-        timer.start();
-    }
+public class Clock extends WorldObject implements ControlObject, TimingWheel.Listener {
 
     public static final int NONE = -1;
     public static final int SLOW = 0;
@@ -110,17 +52,30 @@ public class Clock extends WorldObject implements ControlObject {
     public static final int FAST = 2;
     public static final int EXTREME = 3;
 
-    protected int type;
-    protected boolean active;
+    //Ticks between toggles for each of the preset rates
+    private static final int[] PRESETS = {4, 3, 2, 1};
+
+    protected int period;
+    protected int phase;
+    protected volatile boolean active;
+    protected boolean attached;
     protected LinkedList<ToggleObject> toggle = new LinkedList<ToggleObject>();
+    private final TimingWheel.Entry entry = new TimingWheel.Entry(this);
 
     private static final int VERSION_0 = 0;
-    private static final int VERSION_CURRENT = VERSION_0;
+    private static final int VERSION_1 = 1;
+    private static final int VERSION_CURRENT = VERSION_1;
 
+    /**
+     * Writes the Clock with its phase made relative to the current tick, so
+     * that the Clocks of a board come back in step with each other no matter
+     * when the board is loaded.
+     */
     public static void write(DataOutputStream out, Clock clock) throws IOException {
         WorldObject.write(out,clock);
         out.writeInt(VERSION_CURRENT);
-        out.writeInt(clock.type);
+        out.writeInt(clock.period);
+        out.writeInt(clock.period > 0 ? mod(clock.phase - clock.world.getEngine().now(), 2*clock.period) : 0);
         out.writeBoolean(clock.active);
     }
 
@@ -128,7 +83,31 @@ public class Clock extends WorldObject implements ControlObject {
         Clock res = new Clock(w);
         WorldObject.read(in,res);
         int version = in.readInt();
-        res.retype(in.readInt());
+        switch (version) {
+            case VERSION_0:
+                res.setPeriod(preset(in.readInt()), 0);
+                break;
+            default:
+                int period = in.readInt();
+                int phase = in.readInt();
+                res.setPeriod(period, period > 0 ? mod(phase + w.getEngine().now(), 2*period) : 0);
+                break;
+        }
+        res.active = in.readBoolean();
+        return res;
+    }
+
+    public static void write_v3(DataOutputStream out, Clock clock) throws IOException {
+        out.writeInt(clock.period);
+        out.writeInt(clock.period > 0 ? mod(clock.phase - clock.world.getEngine().now(), 2*clock.period) : 0);
+        out.writeBoolean(clock.active);
+    }
+
+    public static Clock read_v3(DataInputStream in, World w) throws IOException {
+        Clock res = new Clock(w);
+        int period = in.readInt();
+        int phase = in.readInt();
+        res.setPeriod(period, period > 0 ? mod(phase + w.getEngine().now(), 2*period) : 0);
         res.active = in.readBoolean();
         return res;
     }
@@ -136,73 +115,144 @@ public class Clock extends WorldObject implements ControlObject {
     public static Clock read_legacy(DataInputStream in, World w) throws IOException {
         Clock res = new Clock(w);
         WorldObject.read_legacy(in,res);
-        res.retype(in.readInt());
+        res.setPeriod(preset(in.readInt()), 0);
         res.active = in.readBoolean();
         return res;
     }
 
+    private static int mod(long a, int b) {
+        return (int) (((a % b) + b) % b);
+    }
 
+    /**
+     * @return Ticks between toggles of a preset rate, or 0 for NONE
+     */
+    private static int preset(int i) {
+        return i >= 0 && i < PRESETS.length ? PRESETS[i] : 0;
+    }
+
+    /**
+     * Creates a REGULAR Clock. The rate is set directly rather than posted to
+     * the Engine, which would only apply it after whoever is creating the
+     * Clock (e.g. `read`) has set the rate it actually wants.
+     */
     public Clock(World w) {
         super(w);
-        if (worlds.containsKey(w)) {
-            worlds.put(w,worlds.get(w)+1);
-        } else {
-            worlds.put(w,1);
-        }
-        retype(REGULAR);
+        period = PRESETS[REGULAR];
+        phase = 0;
     }
 
-    protected WorldObject impl_duplicate() {
-        Clock c = new Clock(world);
-        c.active = active;
-        c.retype(type);
-        return c;
+    /**
+     * Creates an unattached copy with the given rate, without touching the
+     * Engine of either World, as copies for Snapshots are made while the
+     * Engine publishes
+     */
+    private Clock(World w, int period, int phase, boolean active) {
+        super(w);
+        this.period = period;
+        this.phase = phase;
+        this.active = active;
+    }
+
+    protected WorldObject impl_duplicate(World w) {
+        //keep the same place in the cycle if `w` is at a different tick
+        return new Clock(w, period, period > 0 ? mod(phase - world.getEngine().now() + w.getEngine().now(), 2*period) : 0, active);
     }
 
     public void tick(boolean high) {
         active = high;
+        touch();
     }
 
-    public void retype(int i) {
-        switch (type) {
-            case SLOW:
-                slow.remove(this);
-                break;
-            case REGULAR:
-                regular.remove(this);
-                break;
-            case FAST:
-                fast.remove(this);
-                break;
-            case EXTREME:
-                extreme.remove(this);
+    /**
+     * Toggles the Clock. If none of the controlled objects that would change
+     * can affect a beam, they are toggled right away and the Engine is told
+     * that only a repaint is needed.
+     */
+    public void expire(long tick) {
+        boolean high = mod(tick - phase, 2*period) < period;
+        if (high == active) return;
+        tick(high);
+        boolean settle = false;
+        for (ToggleObject obj : toggle) {
+            if (obj.getToggle() != high && world.affectsBeams(obj)) {
+                settle = true;
                 break;
+            }
         }
-        type = i;
-        switch (type) {
-            case SLOW:
-                slow.add(this);
-                break;
-            case REGULAR:
-                regular.add(this);
-                break;
-            case FAST:
-                fast.add(this);
-                break;
-            case EXTREME:
-                extreme.add(this);
-                break;
+        if (!settle) {
+            for (ToggleObject obj : toggle) {
+                if (obj.getToggle() != high) {
+                    obj.setToggle(high);
+                    world.getEngine().changed((WorldObject) obj, false);
+                }
+            }
         }
+        world.getEngine().changed(this, settle);
+    }
+
+    public int getPeriod() {
+        return period;
+    }
+
+    public int getPhase() {
+        return phase;
+    }
+
+    /**
+     * Sets the Clock to toggle every `period` ticks, turning on at `phase`
+     * within each cycle of 2*period ticks. Only takes effect on the Engine
+     * once the Clock is in its World, and never blocks on the clock thread.
+     * @param period Ticks between toggles, or less than 1 to stop the Clock
+     * @param phase Offset of the cycle in ticks
+     */
+    public void setPeriod(int period, int phase) {
+        this.period = Math.max(period, 0);
+        this.phase = this.period > 0 ? mod(phase, 2*this.period) : 0;
+        if (attached) world.getEngine().schedule(entry, this.period, this.phase);
+    }
+
+    /**
+     * Switches to one of the preset rates (NONE, SLOW, REGULAR, FAST, EXTREME)
+     * @param i The rate
+     */
+    public void retype(int i) {
+        post(preset(i), 0);
+    }
+
+    /**
+     * Changes the rate from the GUI by way of the Engine thread, which is the
+     * only one reading `period` and `phase` during a tick
+     */
+    private void post(final int period, final int phase) {
+        world.getEngine().post(new Runnable() {
+            public void run() {
+                setPeriod(period, phase);
+            }
+        });
+    }
+
+    private void customType() {
+        String res = JOptionPane.showInputDialog(world, "Ticks between toggles, optionally followed by a phase offset", period + " " + phase);
+        if (res == null) return;
+        try {
+            String[] parts = res.trim().split("\\s+");
+            post(Integer.parseInt(parts[0]), parts.length > 1 ? Integer.parseInt(parts[1]) : 0);
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(world, "Not a number: " + res);
+        }
+    }
+
+    @Override
+    public void added() {
+        attached = true;
+        world.getEngine().schedule(entry, period, phase);
     }
 
     @Override
     public void cleanup() {
-        int count = worlds.get(world)-1;
-        worlds.put(world,count);
-        if (count < 1) {
-            worlds.remove(world);
-        }
-        retype(NONE);
+        attached = false;
+        world.getEngine().cancel(entry);
     }
 
     @Override
@@ -251,7 +301,8 @@ public class Clock extends WorldObject implements ControlObject {
             new JMenuItem(new MethodAction("Slow Tick",this,"retype",new Class[] {Integer.TYPE},SLOW)),
             new JMenuItem(new MethodAction("Regular Tick",this,"retype",new Class[] {Integer.TYPE},REGULAR)),
             new JMenuItem(new MethodAction("Fast Tick",this,"retype",new Class[] {Integer.TYPE},FAST)),
-            new JMenuItem(new MethodAction("Extreme Tick",this,"retype",new Class[] {Integer.TYPE},EXTREME))
+            new JMenuItem(new MethodAction("Extreme Tick",this,"retype",new Class[] {Integer.TYPE},EXTREME)),
+            new JMenuItem(new MethodAction("Custom Tick...",this,"customType",null))
         };
     }
 
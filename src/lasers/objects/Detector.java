@@ -40,6 +40,9 @@ import lasers.WorldObject;
 public class Detector extends WorldObject implements ControlObject {
 
     protected boolean struck;
+    protected boolean forced;
+    //`struck` before the current settle cycle
+    private boolean wasStruck;
     protected LinkedList<ToggleObject> toggle = new LinkedList<ToggleObject>();
 
     private static final int VERSION_0 = 0;
@@ -59,6 +62,16 @@ public class Detector extends WorldObject implements ControlObject {
         return res;
     }
 
+    public static void write_v3(DataOutputStream out, Detector detector) throws IOException {
+        out.writeBoolean(detector.struck);
+    }
+
+    public static Detector read_v3(DataInputStream in, World w) throws IOException {
+        Detector res = new Detector(w);
+        res.struck = in.readBoolean();
+        return res;
+    }
+
     public static Detector read_legacy(DataInputStream in, World w) throws IOException {
         Detector res = new Detector(w);
         WorldObject.read_legacy(in,res);
@@ -70,8 +83,8 @@ public class Detector extends WorldObject implements ControlObject {
         super(w);
     }
 
-    protected WorldObject impl_duplicate() {
-        Detector d = new Detector(world);
+    protected WorldObject impl_duplicate(World w) {
+        Detector d = new Detector(w);
         d.struck = struck;
         return d;
     }
@@ -84,9 +97,23 @@ public class Detector extends WorldObject implements ControlObject {
         g.drawOval((int)((x-extent)*scale), (int)((y-extent)*scale), (int)(extent*2*scale),  (int)(extent*2*scale));
     }
 
+    /**
+     * Holds the Detector in the struck state regardless of incident beams.
+     * Used to drive the input ports of a Subcircuit definition.
+     * @param on True to force the Detector on
+     */
+    public void force(boolean on) {
+        forced = on;
+    }
+
+    public boolean isStruck() {
+        return struck;
+    }
+
     @Override
     public Beam unsettled() {
-        struck = false;
+        wasStruck = struck;
+        struck = forced;
         return null;
     }
 
@@ -99,6 +126,7 @@ public class Detector extends WorldObject implements ControlObject {
     
     @Override
     public void settled() {
+        if (struck != wasStruck) touch();
         for (ToggleObject obj : toggle) {
             obj.setToggle(struck);
         }
@@ -67,6 +67,18 @@ public class Emitter extends WorldObject implements ToggleObject {
         return res;
     }
 
+    public static void write_v3(DataOutputStream out, Emitter emittor) throws IOException {
+        out.writeBoolean(emittor.emitting);
+        out.writeInt(emittor.color.getRGB());
+    }
+
+    public static Emitter read_v3(DataInputStream in, World w) throws IOException {
+        Emitter res = new Emitter(w);
+        res.emitting = in.readBoolean();
+        res.color = new Color(in.readInt());
+        return res;
+    }
+
     public static Emitter read_legacy(DataInputStream in, World w) throws IOException {
         Emitter res = new Emitter(w);
         WorldObject.read_legacy(in,res);
@@ -74,9 +86,10 @@ public class Emitter extends WorldObject implements ToggleObject {
         return res;
     }
 
-    protected WorldObject impl_duplicate() {
-        Emitter e = new Emitter(world);
+    protected WorldObject impl_duplicate(World w) {
+        Emitter e = new Emitter(w);
         e.emitting = emitting;
+        e.color = color;
         return e;
     }
 
@@ -89,21 +102,45 @@ public class Emitter extends WorldObject implements ToggleObject {
         owner = newowner;
     }
 
-    public void setColor(Color c) {
-        color = c;
-        world.rebuildBeams();
-        world.repaint();
+    public Color getColor() {
+        return color;
+    }
+
+    public void setColor(final Color c) {
+        world.getEngine().post(new Runnable() {
+            public void run() {
+                Emitter e = (Emitter) world.own(Emitter.this);
+                e.color = c;
+                e.touch();
+            }
+        });
     }
 
     public void setToggle(boolean on) {
-        if (emitting != on) world.invalidate(this);
+        if (emitting != on) {
+            world.invalidate(this);
+            touch();
+        }
         emitting = on;
     }
 
+    @Override
+    public boolean isShareable() {
+        return owner == null;
+    }
+
+    public boolean getToggle() {
+        return emitting;
+    }
+
     private void toggle() {
-        emitting = !emitting;
-        world.rebuildBeams();
-        world.repaint();
+        world.getEngine().post(new Runnable() {
+            public void run() {
+                Emitter e = (Emitter) world.own(Emitter.this);
+                e.emitting = !e.emitting;
+                e.touch();
+            }
+        });
     }
 
     private void setColor() {
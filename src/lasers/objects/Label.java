@@ -41,6 +41,18 @@ public class Label extends WorldObject {
         return res;
     }
 
+    public static void write_v3(DataOutputStream out, Label l) throws IOException {
+        out.writeUTF(l.str);
+        out.writeInt(l.color.getRGB());
+    }
+
+    public static Label read_v3(DataInputStream in, World w) throws IOException {
+        Label res = new Label(w);
+        res.str = in.readUTF();
+        res.color = new Color(in.readInt());
+        return res;
+    }
+
     public static Label read_legacy(DataInputStream in, World w) throws IOException {
         Label res = new Label(w);
         WorldObject.read_legacy(in,res);
@@ -56,14 +68,33 @@ public class Label extends WorldObject {
         color = Color.CYAN;
     }
 
-    public void setText(String text) {
-        str = text;
-        world.repaint();
+    public String getText() {
+        return str;
+    }
+
+    public void setText(final String text) {
+        world.getEngine().post(new Runnable() {
+            public void run() {
+                Label l = (Label) world.own(Label.this);
+                l.str = text;
+                l.touch();
+            }
+        });
     }
 
-    public void setColor(Color c) {
-        color = c;
-        world.repaint();
+    public void setColor(final Color c) {
+        world.getEngine().post(new Runnable() {
+            public void run() {
+                Label l = (Label) world.own(Label.this);
+                l.color = c;
+                l.touch();
+            }
+        });
+    }
+
+    @Override
+    public boolean isShareable() {
+        return true;
     }
 
     @Override
@@ -76,8 +107,8 @@ public class Label extends WorldObject {
     }
 
     @Override
-    protected WorldObject impl_duplicate() {
-        Label l = new Label(world);
+    protected WorldObject impl_duplicate(World w) {
+        Label l = new Label(w);
         l.str = str;
         l.color = color;
         return l;
@@ -86,9 +117,8 @@ public class Label extends WorldObject {
     private void setText() {
         String wat = JOptionPane.showInputDialog(world, "Change the text", str);
         if (wat != null) {
-            str = wat;
+            setText(wat);
         }
-        world.repaint();
     }
 
     private void setColor() {
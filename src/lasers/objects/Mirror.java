@@ -55,14 +55,26 @@ public class Mirror extends WorldObject {
         return res;
     }
 
+    public static void write_v3(DataOutputStream out, Mirror mirror) throws IOException {
+    }
+
+    public static Mirror read_v3(DataInputStream in, World w) throws IOException {
+        return new Mirror(w);
+    }
+
     public static Mirror read_legacy(DataInputStream in, World w) throws IOException {
         Mirror res = new Mirror(w);
         WorldObject.read_legacy(in,res);
         return res;
     }
 
-    protected WorldObject impl_duplicate() {
-        return new Mirror(world);
+    protected WorldObject impl_duplicate(World w) {
+        return new Mirror(w);
+    }
+
+    @Override
+    public boolean isShareable() {
+        return true;
     }
 
     @Override
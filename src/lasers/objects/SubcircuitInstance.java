@@ -0,0 +1,267 @@
+/**
+ *  Copyright 2010 by Benjamin J. Land (a.k.a. BenLand100)
+ *
+ *  This file is part of the Laser Logic Simulator
+ *
+ *  Laser Logic Simulator is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Laser Logic Simulator is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Laser Logic Simulator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lasers.objects;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.geom.AffineTransform;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import lasers.Beam;
+import lasers.Subcircuit;
+import lasers.World;
+import lasers.WorldObject;
+
+/**
+ * A lightweight placement of a Subcircuit. The instance only stores its
+ * position, rotation and port/state bits, everything else is shared with the
+ * definition. It acts as a sealed box: beams that reach an input port turn
+ * that input on, any other beam entering the instance is absorbed.
+ *
+ * @author benland100
+ */
+public class SubcircuitInstance extends WorldObject {
+
+    protected final Subcircuit def;
+    protected long state;
+    protected int outputs;
+    protected int inputs, pending;
+    protected Subcircuit.Behaviour current;
+
+    private static final int VERSION_0 = 0;
+    private static final int VERSION_CURRENT = VERSION_0;
+
+    /**
+     * Writes an instance, preceded by the index of its definition in `defs`.
+     * The definition itself follows the index the first time it is written
+     * to a stream, so it is saved only once however many instances use it
+     * @param defs Definitions already written to the stream, with their indexes
+     */
+    public static void write(DataOutputStream out, SubcircuitInstance inst, Map<Subcircuit,Integer> defs) throws IOException {
+        Integer d = defs.get(inst.def);
+        if (d == null) {
+            out.writeInt(defs.size());
+            Subcircuit.write(out,inst.def);
+            defs.put(inst.def,defs.size());
+        } else {
+            out.writeInt(d);
+        }
+        WorldObject.write(out,inst);
+        out.writeInt(VERSION_CURRENT);
+        out.writeInt(inst.inputs);
+        out.writeLong(inst.state);
+    }
+
+    /**
+     * Reads an instance written by `write`
+     * @param defs Definitions read from the stream so far, in order
+     */
+    public static SubcircuitInstance read(DataInputStream in, World w, List<Subcircuit> defs) throws IOException {
+        int d = in.readInt();
+        if (d == defs.size()) {
+            defs.add(Subcircuit.read(in,w));
+        } else if (d < 0 || d > defs.size()) {
+            throw new IOException("Bad subcircuit index " + d);
+        }
+        return read(in,w,defs.get(d));
+    }
+
+    /**
+     * Reads an instance that has its definition inline, as saved before
+     * definitions were shared
+     */
+    public static SubcircuitInstance read(DataInputStream in, World w) throws IOException {
+        return read(in,w,Subcircuit.read(in,w));
+    }
+
+    private static SubcircuitInstance read(DataInputStream in, World w, Subcircuit def) throws IOException {
+        SubcircuitInstance res = new SubcircuitInstance(w,def);
+        WorldObject.read(in,res);
+        int version = in.readInt();
+        res.inputs = in.readInt();
+        res.setState(in.readLong());
+        return res;
+    }
+
+    /**
+     * Writes the state of an instance, but not its definition, which LASERSv3
+     * writes only once per stream
+     */
+    public static void write_v3(DataOutputStream out, SubcircuitInstance inst) throws IOException {
+        out.writeInt(inst.inputs);
+        out.writeLong(inst.state);
+    }
+
+    public static SubcircuitInstance read_v3(DataInputStream in, World w, Subcircuit def) throws IOException {
+        SubcircuitInstance res = new SubcircuitInstance(w,def);
+        res.inputs = in.readInt();
+        res.setState(in.readLong());
+        return res;
+    }
+
+    public SubcircuitInstance(World w, Subcircuit def) {
+        super(w);
+        this.def = def;
+        extent = def.getRadius();
+        setState(def.getInitialState());
+    }
+
+    public Subcircuit getDefinition() {
+        return def;
+    }
+
+    public long getState() {
+        return state;
+    }
+
+    /**
+     * Sets the internal state, recomputing the outputs for the current inputs
+     * @param state State bits of the definition
+     */
+    public void setState(long state) {
+        current = def.evaluate(inputs, state);
+        this.state = current.state;
+        outputs = current.outputs;
+        touch();
+    }
+
+    /**
+     * Copies an instance as it is, without evaluating the definition again
+     */
+    private SubcircuitInstance(World w, SubcircuitInstance from) {
+        super(w);
+        def = from.def;
+        extent = from.extent;
+        inputs = from.inputs;
+        state = from.state;
+        outputs = from.outputs;
+        current = from.current;
+    }
+
+    protected WorldObject impl_duplicate(World w) {
+        return new SubcircuitInstance(w,this);
+    }
+
+    /**
+     * Transforms a point in template coordinates to world coordinates
+     */
+    private Point toWorld(Point local) {
+        double cos = Math.cos(angle), sin = Math.sin(angle);
+        return new Point((int)Math.round(x + local.x*cos - local.y*sin), (int)Math.round(y + local.x*sin + local.y*cos));
+    }
+
+    @Override
+    public Beam unsettled() {
+        pending = 0;
+        Beam first = null, last = null;
+        for (int i = 0; i < def.numOutputs(); i++) {
+            if ((outputs & (1 << i)) == 0) continue;
+            Emitter port = def.getOutput(i);
+            Point p = toWorld(port.getPos());
+            double a = angle + port.getAngle();
+            Beam b = new Beam(a,(int)(p.x+Math.cos(a)*port.getExtent()),(int)(p.y+Math.sin(a)*port.getExtent()),port.getColor());
+            if (first == null) {
+                first = b;
+            } else {
+                last.sibling = b;
+            }
+            last = b;
+        }
+        return first;
+    }
+
+    @Override
+    public Beam strike(Beam beam) {
+        double cos = Math.cos(beam.angle), sin = Math.sin(beam.angle);
+        double best = Double.MAX_VALUE;
+        int port = -1;
+        for (int i = 0; i < def.numInputs(); i++) {
+            WorldObject in = def.getInput(i);
+            Point p = toWorld(in.getPos());
+            double dx = p.x - beam.org_x, dy = p.y - beam.org_y;
+            double along = dx*cos + dy*sin;
+            double off = Math.abs(dx*sin - dy*cos);
+            if (along > 0 && off <= in.getExtent() && along < best) {
+                best = along;
+                port = i;
+            }
+        }
+        if (port >= 0) {
+            pending |= 1 << port;
+            beam.distance = best;
+        } else {
+            beam.distance = Math.max(1, Math.hypot(beam.org_x-x,beam.org_y-y) - extent);
+        }
+        return null;
+    }
+
+    @Override
+    public void settled() {
+        Subcircuit.Behaviour next = def.evaluate(pending, state);
+        if (next.outputs != outputs || next.state != state) world.invalidate(this);
+        if (next != current || pending != inputs) touch();
+        inputs = pending;
+        current = next;
+        outputs = next.outputs;
+        state = next.state;
+    }
+
+    @Override
+    public void draw(Graphics2D g, double scale) {
+        AffineTransform saved = g.getTransform();
+        g.translate(x*scale, y*scale);
+        g.rotate(angle);
+        g.scale(scale, scale);
+        for (Beam b : current.beams) {
+            while (b != null) {
+                double len = Math.min(b.distance, 2*extent);
+                g.setColor(b.c);
+                g.drawLine(b.org_x, b.org_y, (int)(b.org_x + len*Math.cos(b.angle)), (int)(b.org_y + len*Math.sin(b.angle)));
+                b = b.child;
+            }
+        }
+        for (int i = 0; i < def.numInputs(); i++) {
+            WorldObject in = def.getInput(i);
+            Point p = in.getPos();
+            int e = in.getExtent();
+            g.setColor((inputs & (1 << i)) != 0 ? Color.RED : Color.WHITE);
+            g.drawOval(p.x-e, p.y-e, e*2, e*2);
+        }
+        for (int i = 0; i < def.numOutputs(); i++) {
+            Emitter out = def.getOutput(i);
+            Point p = out.getPos();
+            int e = out.getExtent();
+            g.setColor(Color.GRAY);
+            g.fillOval(p.x-e, p.y-e, e*2, e*2);
+            g.setColor(out.getColor());
+            g.drawLine(p.x, p.y, (int)(p.x+Math.cos(out.getAngle())*e), (int)(p.y+Math.sin(out.getAngle())*e));
+        }
+        g.setColor(Color.DARK_GRAY);
+        g.drawOval(-extent, -extent, extent*2, extent*2);
+        g.setColor(Color.LIGHT_GRAY);
+        g.drawString(def.getName(), -extent, -extent);
+        g.setTransform(saved);
+    }
+
+}
@@ -0,0 +1,71 @@
+/**
+ *  Copyright 2010 by Benjamin J. Land (a.k.a. BenLand100)
+ *
+ *  This file is part of the Laser Logic Simulator
+ *
+ *  Laser Logic Simulator is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Laser Logic Simulator is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Laser Logic Simulator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lasers;
+
+import java.awt.Point;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the life cycle of the Engine thread
+ *
+ * @author benland100
+ */
+public class EngineTest {
+
+    @Test
+    public void disposeStopsThread() throws InterruptedException {
+        World w = new World();
+        //a Clock keeps the thread ticking, so it can't have lingered out
+        w.addObject(World.ObjectType.CLOCK, new Point(0, 0));
+        final Thread[] engine = new Thread[1];
+        w.getEngine().post(new Runnable() {
+            public void run() {
+                engine[0] = Thread.currentThread();
+            }
+        });
+        w.getEngine().flush();
+        assertNotNull(engine[0]);
+        assertTrue(engine[0].isAlive());
+        w.dispose();
+        assertFalse(engine[0].isAlive());
+        assertFalse(w.getEngine().isRunning());
+    }
+
+    @Test
+    public void cancelStartsThread() throws InterruptedException {
+        World w = new World();
+        Engine e = w.getEngine();
+        TimingWheel.Entry entry = new TimingWheel.Entry(new TimingWheel.Listener() {
+            public void expire(long tick) {
+            }
+        });
+        e.cancel(entry);
+        //the request must be applied by a thread, which then exits
+        assertTrue(e.isRunning());
+        long until = System.currentTimeMillis() + Engine.LINGER * 3;
+        while (e.isRunning() && System.currentTimeMillis() < until) {
+            Thread.sleep(50);
+        }
+        assertFalse(e.isRunning());
+        w.dispose();
+    }
+
+}